@@ -20,6 +20,61 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.OutputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.ObjectInputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.RecursiveTask;
 import java.awt.*;
 import javax.swing.*;
 
@@ -32,6 +87,15 @@ public class DBProject {
     // reference to physical database connection.
     private Connection _connection = null;
 
+    // login of the connection, kept for the tools that open their own session.
+    private String _dbname, _dbport, _user;
+
+    // timeout in seconds of the statements issued by the current operation, 0 for none.
+    private int _queryTimeout = 0;
+
+    // process id of the server backend of the connection, -1 until first needed.
+    private int _backendPid = -1;
+
     // handling the keyboard inputs through a BufferedReader
     // This variable can be global for convenience.
     static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
@@ -47,6 +111,9 @@ public class DBProject {
      */
     public DBProject(String dbname, String dbport, String user, String passwd) throws SQLException {
 
+        this._dbname = dbname;
+        this._dbport = dbport;
+        this._user = user;
         System.out.print("Connecting to database...");
         try {
             // constructs the connection URL
@@ -63,22 +130,73 @@ public class DBProject {
         }//end catch
     }//end DBProject
 
+    /**
+     * Opens a quiet session for a background task: nothing is printed and
+     * a failed connection is reported to the caller instead of ending the
+     * program.
+     *
+     * @param esql the session whose login is reused
+     * @return the new session
+     * @throws java.sql.SQLException when failed to make a connection.
+     */
+    static DBProject openBackgroundSession(DBProject esql) throws SQLException {
+        DBProject session = new DBProject();
+        session._dbname = esql._dbname;
+        session._dbport = esql._dbport;
+        session._user = esql._user;
+        session._connection = DriverManager.getConnection(
+                "jdbc:postgresql://localhost:" + esql._dbport + "/" + esql._dbname, esql._user, "");
+        return session;
+    }//end openBackgroundSession
+
+    private DBProject() {
+    }//end DBProject
+
+    /**
+     * Creates a statement carrying the timeout of the current operation.
+     * Drivers that do not enforce it are covered by the admission watchdog
+     * which cancels the backend instead.
+     */
+    private Statement createStatement() throws SQLException {
+        Statement stmt = this._connection.createStatement();
+        if (this._queryTimeout > 0) {
+            try {
+                stmt.setQueryTimeout(this._queryTimeout);
+            } catch (SQLException e) {
+                // not supported by the driver.
+            }//end try
+        }//end if
+        return stmt;
+    }//end createStatement
+
+    /**
+     * Returns the process id of the server backend serving this connection,
+     * the handle pg_cancel_backend() needs to cancel its running statement.
+     */
+    public int backendPid() throws SQLException {
+        if (this._backendPid < 0)
+            this._backendPid = Integer.parseInt(executeQueryAndReturnResult("select pg_backend_pid();").get(0).get(0));
+        return this._backendPid;
+    }//end backendPid
+
     /**
      * Method to execute an update SQL statement.  Update SQL instructions
      * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
      *
      * @param sql the input SQL string
+     * @return the number of rows affected
      * @throws java.sql.SQLException when update failed
      */
-    public void executeUpdate(String sql) throws SQLException {
+    public int executeUpdate(String sql) throws SQLException {
         // creates a statement object
-        Statement stmt = this._connection.createStatement();
+        Statement stmt = createStatement();
 
         // issues the update instruction
-        stmt.executeUpdate(sql);
+        int rowCount = stmt.executeUpdate(sql);
 
         // close the instruction
         stmt.close();
+        return rowCount;
     }//end executeUpdate
 
     /**
@@ -91,8 +209,22 @@ public class DBProject {
      * @throws java.sql.SQLException when failed to execute the query
      */
     public int executeQuery(String query) throws SQLException {
+        return executeQuery(query, System.out);
+    }//end executeQuery
+
+    /**
+     * Method to execute an input query SQL instruction (i.e. SELECT).  This
+     * method issues the query to the DBMS and outputs the results to
+     * the given stream.
+     *
+     * @param query the input query string
+     * @param out where the results are printed
+     * @return the number of rows returned
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQuery(String query, PrintStream out) throws SQLException {
         // creates a statement object
-        Statement stmt = this._connection.createStatement();
+        Statement stmt = createStatement();
 
         // issues the query instruction
         ResultSet rs = stmt.executeQuery(query);
@@ -105,25 +237,174 @@ public class DBProject {
         int numCol = rsmd.getColumnCount();
         int rowCount = 0;
 
-        // iterates through the result set and output them to standard out.
+        // iterates through the result set and output them to the stream.
         boolean outputHeader = true;
         while (rs.next()) {
             if (outputHeader) {
                 for (int i = 1; i <= numCol; i++) {
-                    System.out.print(rsmd.getColumnName(i) + "\t");
+                    out.print(rsmd.getColumnName(i) + "\t");
                 }
-                System.out.println();
+                out.println();
                 outputHeader = false;
             }
             for (int i = 1; i <= numCol; ++i)
-                System.out.print(rs.getString(i) + "\t");
-            System.out.println();
+                out.print(rs.getString(i) + "\t");
+            out.println();
             ++rowCount;
         }//end while
         stmt.close();
         return rowCount;
     }//end executeQuery
 
+    /**
+     * Method to execute an input query SQL instruction (i.e. SELECT).  This
+     * method issues the query to the DBMS and returns the results as
+     * a list of records. Each record in turn is a list of attribute values
+     *
+     * @param query the input query string
+     * @return the query result as a list of records
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> executeQueryAndReturnResult(String query) throws SQLException {
+        // creates a statement object
+        Statement stmt = createStatement();
+
+        // issues the query instruction
+        ResultSet rs = stmt.executeQuery(query);
+
+        ResultSetMetaData rsmd = rs.getMetaData();
+        int numCol = rsmd.getColumnCount();
+
+        // iterates through the result set and saves the data returned by the query.
+        List<List<String>> result = new ArrayList<List<String>>();
+        while (rs.next()) {
+            List<String> record = new ArrayList<String>();
+            for (int i = 1; i <= numCol; ++i)
+                record.add(rs.getString(i));
+            result.add(record);
+        }//end while
+        stmt.close();
+        return result;
+    }//end executeQueryAndReturnResult
+
+    /**
+     * Converts a date literal, as typed at the prompts, to days since
+     * 1970-01-01. The server does the parsing so the DateStyle matches
+     * the one every other operation uses.
+     *
+     * @param date the date as entered by the user
+     * @return the epoch day of the date
+     * @throws java.sql.SQLException when the date cannot be parsed
+     */
+    public int toEpochDay(String date) throws SQLException {
+        List<List<String>> result =
+                executeQueryAndReturnResult("select date '" + date + "' - date '1970-01-01';");
+        return Integer.parseInt(result.get(0).get(0));
+    }//end toEpochDay
+
+    // number of rows fetched per round trip when streaming a result
+    static final int FETCH_ROWS = 10000;
+
+    /**
+     * Receives the rows of a streamed query, see streamQuery.
+     */
+    abstract static class RowHandler {
+        /** Called once, before the first row, with the columns of the result. */
+        void begin(ResultSetMetaData rsmd) throws SQLException, IOException {
+        }
+
+        /** Called for every row, rs is positioned on it. */
+        abstract void row(ResultSet rs) throws SQLException, IOException;
+    }//end RowHandler
+
+    /**
+     * Method to execute a query and hand its rows one at a time to a
+     * handler. The query runs through a server side cursor so only
+     * FETCH_ROWS rows are held in memory at a time, whatever the size of
+     * the result.
+     *
+     * @param query the input query string, without the trailing semicolon
+     * @param handler receives the rows
+     * @return the number of rows returned
+     * @throws java.sql.SQLException when failed to execute the query
+     * @throws java.io.IOException when the handler failed
+     */
+    public long streamQuery(String query, RowHandler handler) throws SQLException, IOException {
+        boolean autoCommit = this._connection.getAutoCommit();
+        this._connection.setAutoCommit(false);
+        Statement stmt = this._connection.createStatement();
+        long rowCount = 0;
+        try {
+            stmt.executeUpdate("declare stream_cursor no scroll cursor for " + query);
+            boolean first = true;
+            int fetched;
+            do {
+                ResultSet rs = stmt.executeQuery("fetch " + FETCH_ROWS + " from stream_cursor;");
+                if (first) {
+                    handler.begin(rs.getMetaData());
+                    first = false;
+                }
+                fetched = 0;
+                while (rs.next()) {
+                    handler.row(rs);
+                    ++fetched;
+                }//end while
+                rs.close();
+                rowCount += fetched;
+            } while (fetched == FETCH_ROWS);
+            stmt.executeUpdate("close stream_cursor;");
+            this._connection.commit();
+        } catch (SQLException e) {
+            this._connection.rollback();
+            throw e;
+        } finally {
+            stmt.close();
+            this._connection.setAutoCommit(autoCommit);
+        }//end try
+        return rowCount;
+    }//end streamQuery
+
+    /**
+     * Method to execute a query and stream its result as CSV, header
+     * included, see streamQuery.
+     *
+     * @param query the input query string, without the trailing semicolon
+     * @param out where the CSV lines are written
+     * @return the number of rows written
+     * @throws java.sql.SQLException when failed to execute the query
+     * @throws java.io.IOException when failed to write the output
+     */
+    public long streamQueryAsCsv(String query, final Writer out) throws SQLException, IOException {
+        return streamQuery(query, new RowHandler() {
+            int numCol;
+
+            void begin(ResultSetMetaData rsmd) throws SQLException, IOException {
+                numCol = rsmd.getColumnCount();
+                for (int i = 1; i <= numCol; i++)
+                    out.write((i > 1 ? "," : "") + csvValue(rsmd.getColumnName(i)));
+                out.write("\n");
+            }
+
+            void row(ResultSet rs) throws SQLException, IOException {
+                for (int i = 1; i <= numCol; i++)
+                    out.write((i > 1 ? "," : "") + csvValue(rs.getString(i)));
+                out.write("\n");
+            }
+        });
+    }//end streamQueryAsCsv
+
+    /*
+     * Quotes a value for CSV output when it needs it, null becomes empty
+     */
+    static String csvValue(String value) {
+        if (value == null)
+            return "";
+        value = value.trim();
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0)
+            return value;
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }//end csvValue
+
     /**
      * Method to close the physical connection if it is open.
      */
@@ -141,11 +422,12 @@ public class DBProject {
      * The main execution method
      *
      * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+     *             and, to run as a server instead of the menu, the port to listen on
      */
     public static void main(String[] args) {
-        if (args.length != 3) {
+        if (args.length != 3 && args.length != 4) {
             System.err.println("Usage: " + "java [-classpath <classpath>] " + DBProject.class.getName()
-                    + " <dbname> <port> <user>");
+                    + " <dbname> <port> <user> [server port]");
             return;
         }//end if
 
@@ -160,6 +442,31 @@ public class DBProject {
             String dbport = args[1];
             String user = args[2];
             esql = new DBProject(dbname, dbport, user, "");
+            connectedNanos = System.nanoTime();
+
+            if (WARMUP) {
+                warmUp = new WarmUp(esql);
+                warmUp.start();
+            }//end if
+
+            if (JOURNAL_FILE != null) {
+                journal = new Journal(new File(JOURNAL_FILE), esql);
+                System.out.println("Journal " + JOURNAL_FILE + ": replaying " + journal.pending()
+                        + " unapplied write(s) in the background\n");
+            }//end if
+
+            if (args.length == 4) {
+                final OperationServer server = new OperationServer(esql, Integer.parseInt(args[3]));
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        server.shutdown();
+                        logStartupMetrics();
+                    }
+                });
+                // the server owns the session from now on
+                esql = null;
+                server.serve();
+            }//end if
 
             boolean keepon = true;
             while (keepon) {
@@ -182,7 +489,17 @@ public class DBProject {
                 System.out.println("14. List the repairs made by maintenance company");
                 System.out.println("15. Get top k maintenance companies based on repair count");
                 System.out.println("16. Get number of repairs occurred per year for a given hotel room");
-                System.out.println("17. < EXIT");
+                System.out.println("17. Booking snapshot analytics");
+                System.out.println("18. Batch reports for all hotels");
+                System.out.println("19. Paged listings");
+                System.out.println("20. Export tables or reports to CSV");
+                System.out.println("21. Show admission control, journal and startup metrics");
+                System.out.println("22. Archive old bookings, repairs and requests");
+                System.out.println("23. Auto-assign house cleaning staff to rooms of all hotels");
+                System.out.println("24. Search repair and request descriptions");
+                System.out.println("25. Approximate analytics (sketches)");
+                System.out.println("26. Find customers by name");
+                System.out.println("27. < EXIT");
 
                 switch (readChoice()) {
                     case 1:
@@ -234,6 +551,39 @@ public class DBProject {
                         numberOfRepairsForEachRoomPerYear(esql);
                         break;
                     case 17:
+                        snapshotAnalytics(esql);
+                        break;
+                    case 18:
+                        batchReports(esql);
+                        break;
+                    case 19:
+                        pagedListings(esql);
+                        break;
+                    case 20:
+                        exportCsv(esql);
+                        break;
+                    case 21:
+                        printAdmissionMetrics(System.out);
+                        printJournalMetrics(System.out);
+                        printStartupMetrics(System.out);
+                        System.out.println();
+                        break;
+                    case 22:
+                        archiveHistory(esql);
+                        break;
+                    case 23:
+                        autoAssignHouseCleaning(esql);
+                        break;
+                    case 24:
+                        descriptionSearch(esql);
+                        break;
+                    case 25:
+                        approximateAnalytics(esql);
+                        break;
+                    case 26:
+                        customerLookup(esql);
+                        break;
+                    case 27:
                         keepon = false;
                         break;
                     default:
@@ -247,6 +597,7 @@ public class DBProject {
             // make sure to cleanup the created table and close the connection.
             try {
                 if (esql != null) {
+                    logStartupMetrics();
                     System.out.print("Disconnecting from database...");
                     esql.cleanup();
                     System.out.println("Done\n\nBye !");
@@ -283,71 +634,322 @@ public class DBProject {
         return input;
     }//end readChoice
 
-    public static void addCustomer(DBProject esql) {
-        // Given customer details add the customer in the DB
-        try {
-            String query = "INSERT INTO Customer(customerID,fName,lName";
-            System.out.print("\tEnter customerID:");
-            String input1 = in.readLine();
-            while (input1.isEmpty()) {
-                System.out.println("customerID CANNOT be empty!");
-                System.out.print("\tEnter customerID again:");
-                input1 = in.readLine();
-            }
+    /*
+     * Reads a value from the keyboard, asking again until it is not empty
+     * @String
+     **/
+    public static String readRequired(String name) throws IOException {
+        return readRequired("\tEnter " + name + ":", name + " CANNOT be empty!", "\tEnter " + name + " again:");
+    }//end readRequired
 
-            System.out.print("\tEnter fName:");
-            String input2 = in.readLine();
-            while (input2.isEmpty()) {
-                System.out.println("fName CANNOT be empty!");
-                System.out.print("\tEnter fName again:");
-                input2 = in.readLine();
-            }
+    /*
+     * Reads a value from the keyboard with the given messages, asking again until it is not empty
+     * @String
+     **/
+    public static String readRequired(String prompt, String emptyMessage, String againPrompt) throws IOException {
+        System.out.print(prompt);
+        String input = in.readLine();
+        while (input.isEmpty()) {
+            System.out.println(emptyMessage);
+            System.out.print(againPrompt);
+            input = in.readLine();
+        }
+        return input;
+    }//end readRequired
 
-            System.out.print("\tEnter lName:");
-            String input3 = in.readLine();
-            while (input3.isEmpty()) {
-                System.out.println("lName CANNOT be empty!");
-                System.out.print("\tEnter lName again:");
-                input3 = in.readLine();
-            }
+    /*
+     * Reads a value from the keyboard, an empty value is allowed
+     * @String
+     **/
+    public static String readOptional(String name) throws IOException {
+        System.out.print("\tEnter " + name + ":");
+        return in.readLine();
+    }//end readOptional
 
-            System.out.print("\tEnter Address:");
-            String input4 = in.readLine();
-            if (!input4.isEmpty())
-                query += ",Address";
+    /*
+     * ----------------------------------------------------------------------
+     * Operations
+     * ----------------------------------------------------------------------
+     * The 16 menu operations. operationQuery() builds the SQL of an operation
+     * from its arguments and executeOperation() runs it; the console methods
+     * below only prompt for the arguments, so the console is one client of
+     * the operations and the server mode another.
+     */
+
+    // operation names, index + 1 is the menu choice
+    static final String[] OPERATION_NAMES = {"addCustomer", "addRoom", "addMaintenanceCompany", "addRepair",
+            "bookRoom", "assignHouseCleaningToRoom", "repairRequest", "numberOfAvailableRooms",
+            "numberOfBookedRooms", "listHotelRoomBookingsForAWeek", "topKHighestRoomPriceForADateRange",
+            "topKHighestPriceBookingsForACustomer", "totalCostForCustomer", "listRepairsMade",
+            "topKMaintenanceCompany", "numberOfRepairsForEachRoomPerYear"};
+
+    // arguments of each operation in prompt order, a trailing ? marks an optional one,
+    // the optional customerID picks one of the customers sharing a name, see chooseCustomer
+    static final String[][] OPERATION_PARAMS = {
+            {"customerID", "fName", "lName", "Address?", "phNo?", "DOB?", "gender?"},
+            {"hotelID", "roomNo", "roomType"},
+            {"cmpID", "name", "address?", "isCertified"},
+            {"rID", "hotelID", "roomNo", "mCompany", "repairDate", "description?", "repairType?"},
+            {"bID", "fName", "lName", "hotelID", "roomNo", "bookingDate", "noOfPeople?", "price", "customerID?"},
+            {"asgID", "staffID", "hotelID", "roomNo"},
+            {"reqID", "managerID", "repairID", "requestDate", "description?"},
+            {"hotelID"},
+            {"hotelID"},
+            {"hotelID", "date"},
+            {"dateFrom", "dateTo", "k"},
+            {"fName", "lName", "k", "customerID?"},
+            {"hotelID", "fName", "lName", "dateFrom", "dateTo", "customerID?"},
+            {"companyName"},
+            {"k"},
+            {"hotelID", "roomNo"}};
 
-            System.out.print("\tEnter phNo:");
-            String input5 = in.readLine();
-            if (!input5.isEmpty())
-                query += ",phNo";
+    // operations 1 to LAST_UPDATE_OPERATION modify the database, the others are queries
+    static final int LAST_UPDATE_OPERATION = 7;
 
-            System.out.print("\tEnter DOB:");
-            String input6 = in.readLine();
-            if (!input6.isEmpty())
-                query += ",DOB";
+    // parameters that are numbers, the others are quoted strings except isCertified
+    static final List<String> NUMERIC_PARAMS = Arrays.asList("customerID", "hotelID", "roomNo", "cmpID", "rID",
+            "mCompany", "bID", "noOfPeople", "price", "asgID", "staffID", "reqID", "managerID", "repairID", "k");
 
-            System.out.print("\tEnter gender(Male/Female/Other):");
-            String input7 = in.readLine();
-            if (!input7.isEmpty())
-                query += ",gender";
+    /*
+     * Checks the arguments of an operation before they go into its SQL:
+     * numbers must be numbers, isCertified a boolean and the quotes of the
+     * strings are doubled
+     */
+    static String[] checkedArgs(int op, String[] args) {
+        String[] checked = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            String param = OPERATION_PARAMS[op - 1][i].replace("?", "");
+            String value = args[i].trim();
+            if (NUMERIC_PARAMS.contains(param)) {
+                if (!value.isEmpty() && !value.matches("-?[0-9]+(\\.[0-9]+)?"))
+                    throw new IllegalArgumentException(param + " must be a number!");
+            } else if (param.equals("isCertified")) {
+                if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false"))
+                    throw new IllegalArgumentException(param + " must be true or false!");
+            } else {
+                value = args[i].replace("'", "''");
+            }
+            checked[i] = value;
+        }
+        return checked;
+    }//end checkedArgs
 
-            query += ") VALUES(" + input1 + ",'" + input2 + "','" + input3 + "'";
+    /**
+     * Builds the SQL statement of a menu operation.
+     *
+     * @param op the menu choice of the operation (1 to 16)
+     * @param args the arguments in OPERATION_PARAMS order, empty for an omitted optional one
+     * @return the SQL statement
+     * @throws IllegalArgumentException when an argument is not valid for its parameter
+     */
+    public static String operationQuery(int op, String... args) {
+        if (op < 1 || op > OPERATION_NAMES.length)
+            throw new IllegalArgumentException("Unknown operation " + op);
+        // customerMatch escapes the names itself, so it is given the raw ones
+        String[] raw = args;
+        args = checkedArgs(op, raw);
+        String query;
+        switch (op) {
+            case 1:
+                // Given customer details add the customer in the DB
+                query = "INSERT INTO Customer(customerID,fName,lName" + optionalColumns(args, 3, 1) + ") VALUES("
+                        + args[0] + ",'" + args[1] + "','" + args[2] + "'" + optionalValues(args, 3, 1) + ");";
+                break;
+            case 2:
+                // Given room details add the room in the DB
+                query = "INSERT INTO Room VALUES(" + args[0] + "," + args[1] + ",'" + args[2] + "');";
+                break;
+            case 3:
+                // Given maintenance Company details add the maintenance company in the DB
+                query = "INSERT INTO MaintenanceCompany(cmpID,name" + optionalColumns(args, 2, 3)
+                        + ",isCertified) VALUES(" + args[0] + ",'" + args[1] + "'" + optionalValues(args, 2, 3)
+                        + "," + args[3] + ");";
+                break;
+            case 4:
+                // Given repair details add repair in the DB
+                query = "INSERT INTO Repair(rID,hotelID,roomNo,mCompany,repairDate" + optionalColumns(args, 5, 4)
+                        + ") VALUES(" + args[0] + "," + args[1] + "," + args[2] + "," + args[3] + ",'" + args[4] + "'"
+                        + optionalValues(args, 5, 4) + ");";
+                break;
+            case 5:
+                // Given hotelID, roomNo and customer Name create a booking in the DB
+                query = "INSERT INTO Booking(bID,customer,hotelID,roomNo,bookingDate," + (args[6].isEmpty() ? "" : "noOfPeople,")
+                        + "price) VALUES(" + args[0] + "," + (args[8].isEmpty() ? "(select customerid from customer c where "
+                        + customerMatch("c", raw[1], raw[2]) + ")" : args[8]) + "," + args[3] + "," + args[4] + ",'"
+                        + args[5] + "'," + (args[6].isEmpty() ? "" : args[6] + ",") + args[7] + ");";
+                break;
+            case 6:
+                // Given Staff SSN, HotelID, roomNo Assign the staff to the room
+                query = "INSERT INTO Assigned VALUES(" + args[0] + "," + args[1] + "," + args[2] + "," + args[3] + ");";
+                break;
+            case 7:
+                // Given a hotelID, Staff SSN, roomNo, repairID , date create a repair request in the DB
+                query = "INSERT INTO Request VALUES(" + args[0] + "," + args[1] + "," + args[2] + ",'" + args[3] + "'"
+                        + optionalValues(args, 4, 7) + ");";
+                break;
+            case 8:
+                // Given a hotelID, get the count of rooms available
+                query = "select a.anum-b.bnum available from\n" + "(select count(*) anum from room where room.hotelid='"
+                        + args[0] + "') a, (select count(*) bnum from " + archiveUnion("booking", "booking", null)
+                        + " where booking.hotelid='" + args[0] + "') b;";
+                break;
+            case 9:
+                // Given a hotelID, get the count of rooms booked
+                query = "select count(*) booked from " + archiveUnion("booking", "booking", null)
+                        + " where booking.hotelid='" + args[0] + "';";
+                break;
+            case 10:
+                // Given a hotelID, date - list all the rooms available for a week(including the input date)
+                query = "select roomno from room where hotelid='" + args[0]
+                        + "' and roomno not in(select roomno from " + archiveUnion("booking", "booking", args[1])
+                        + " where booking.hotelid='" + args[0]
+                        + "'and bookingdate>='" + args[1] + "' and bookingdate<date'" + args[1] + "'+integer'7');";
+                break;
+            case 11:
+                // List Top K Rooms with the highest price for a given date range
+                query = "select price from " + archiveUnion("booking", "booking", args[0]) + " where bookingdate>='" + args[0] + "' and bookingdate<='" + args[1]
+                        + "' order by price desc limit " + args[2] + ";";
+                break;
+            case 12:
+                // Given a customer Name, List Top K highest booking price for a customer
+                query = "select price from " + archiveUnion("booking", "b", null) + (args[3].isEmpty() ? ",customer c where "
+                        + customerMatch("c", raw[0], raw[1]) + " and b.customer=c.customerid" : " where b.customer=" + args[3])
+                        + " order by price desc limit " + args[2] + ";";
+                break;
+            case 13:
+                // Given a hotelID, customer Name and date range get the total cost incurred by the customer
+                query = "select sum(price) from " + archiveUnion("booking", "b", args[3]) + (args[5].isEmpty() ? ",customer c" : "")
+                        + " where b.hotelid='" + args[0] + "' and " + (args[5].isEmpty() ? customerMatch("c", raw[1], raw[2])
+                        + " and b.customer=c.customerid" : "b.customer=" + args[5]) + " and b.bookingdate>='"
+                        + args[3] + "' and\n" + "b.bookingdate<='" + args[4] + "';";
+                break;
+            case 14:
+                // Given a Maintenance company name list all the repairs along with repairType, hotelID and roomNo
+                query = "select rid,hotelid,roomno,repairtype from " + archiveUnion("repair", "r", null)
+                        + ",maintenancecompany m where m.name='"
+                        + args[0] + "' and r.mcompany=m.cmpid;";
+                break;
+            case 15:
+                // List Top K Maintenance Company Names based on total repair count (descending order)
+                query = "select name " + "from " + archiveUnion("repair", "r", null) + ",maintenancecompany m "
+                        + "where r.mcompany=m.cmpid "
+                        + "group by name " + "order by count(*) desc " + "limit " + args[0] + ";";
+                break;
+            case 16:
+                // Given a hotelID, roomNo, get the count of repairs per year
+                query = "select extract(year from repairdate),count(*) from " + archiveUnion("repair", "repair", null)
+                        + " where hotelid='" + args[0]
+                        + "' and roomno='" + args[1] + "' group by extract(year from repairdate);";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + op);
+        }//end switch
+        return query;
+    }//end operationQuery
 
-            if (!input4.isEmpty())
-                query += ",'" + input4 + "'";
+    /*
+     * The column names of the given optional arguments that are not empty
+     */
+    static String optionalColumns(String[] args, int from, int op) {
+        String columns = "";
+        for (int i = from; i < args.length; i++)
+            if (!args[i].isEmpty() && OPERATION_PARAMS[op - 1][i].endsWith("?"))
+                columns += "," + OPERATION_PARAMS[op - 1][i].substring(0, OPERATION_PARAMS[op - 1][i].length() - 1);
+        return columns;
+    }//end optionalColumns
 
-            if (!input5.isEmpty())
-                query += ",'" + input5 + "'";
+    /*
+     * The quoted values of the given optional arguments that are not empty
+     */
+    static String optionalValues(String[] args, int from, int op) {
+        String values = "";
+        for (int i = from; i < args.length; i++)
+            if (!args[i].isEmpty() && OPERATION_PARAMS[op - 1][i].endsWith("?"))
+                values += ",'" + args[i] + "'";
+        return values;
+    }//end optionalValues
 
-            if (!input6.isEmpty())
-                query += ",'" + input6 + "'";
+    /**
+     * Runs a menu operation whose arguments are already collected. Query
+     * results are printed to out the same way executeQuery prints them.
+     *
+     * @param op the menu choice of the operation (1 to 16)
+     * @param args the arguments in OPERATION_PARAMS order
+     * @param out where the query results are printed
+     * @return the number of rows returned, 0 for an update
+     * @throws java.sql.SQLException when the statement failed
+     */
+    public static int executeOperation(DBProject esql, int op, String[] args, PrintStream out) throws SQLException {
+        return executeOperation(null, esql, op, args, out);
+    }//end executeOperation
 
-            if (!input7.isEmpty())
-                query += ",'" + input7 + "'";
+    /**
+     * Runs an operation on one of the pooled sessions, borrowed only once
+     * the operation is admitted so that queued operations do not hold
+     * sessions the running ones need. Without a pool it runs on esql.
+     */
+    static int executeOperation(BlockingQueue<DBProject> sessions, DBProject esql, int op, String[] args,
+            PrintStream out) throws SQLException {
+        String query = operationQuery(op, args);
+        if (journaling() && isJournaled(op)) {
+            try {
+                journal.append(query);
+            } catch (IOException e) {
+                throw new SQLException("Unable to journal " + OPERATION_NAMES[op - 1] + ": " + e.getMessage());
+            }
+            return 0;
+        }
+        long start = System.nanoTime();
+        int rowCount = runAdmitted(sessions, esql, op, query, out);
+        recordFirstCall(op, start);
+        return rowCount;
+    }//end executeOperation
 
-            query += ");";
+    /*
+     * Runs the statement of an operation under its admission class, with
+     * the class timeout, on esql or on a session borrowed from the pool
+     */
+    static int runAdmitted(BlockingQueue<DBProject> sessions, DBProject esql, int op, String query, PrintStream out)
+            throws SQLException {
+        AdmissionClass admission = admissionClass(op);
+        admission.enter();
+        DBProject session = sessions == null ? esql : null;
+        Watch watch = null;
+        try {
+            if (sessions != null)
+                session = admission.borrow(sessions);
+            watch = admission.watch(session);
+            session._queryTimeout = admission.timeout;
+            int rowCount = 0;
+            if (op <= LAST_UPDATE_OPERATION)
+                session.executeUpdate(query);
+            else
+                rowCount = session.executeQuery(query, out);
+            return rowCount;
+        } catch (SQLException e) {
+            if (watch != null && watch.fired())
+                throw new SQLException(OPERATION_NAMES[op - 1] + " cancelled after " + admission.timeout + " s");
+            throw e;
+        } finally {
+            // disarmed before the session goes back, a late cancellation would hit the next user's statement
+            if (watch != null)
+                watch.disarm();
+            if (session != null) {
+                session._queryTimeout = 0;
+                if (sessions != null)
+                    sessions.add(session);
+            }
+            admission.exit();
+        }//end try
+    }//end runAdmitted
 
-            esql.executeUpdate(query);
+    public static void addCustomer(DBProject esql) {
+        // Given customer details add the customer in the DB
+        try {
+            String[] args = {readRequired("customerID"), readRequired("fName"), readRequired("lName"),
+                    readOptional("Address"), readOptional("phNo"), readOptional("DOB"),
+                    readOptional("gender(Male/Female/Other)")};
+            executeOperation(esql, 1, args, System.out);
             System.out.println("Success!");
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -357,35 +959,8 @@ public class DBProject {
     public static void addRoom(DBProject esql) {
         // Given room details add the room in the DB
         try {
-            String query = "INSERT INTO Room VALUES(";
-            System.out.print("\tEnter hotelID:");
-            String input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("hotelID CANNOT be empty!");
-                System.out.print("\tEnter hotelID again:");
-                input = in.readLine();
-            }
-            query += input + ",";
-
-            System.out.print("\tEnter roomNo:");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("roomNo CANNOT be empty!");
-                System.out.print("\tEnter roomNo again:");
-                input = in.readLine();
-            }
-            query += input + ",'";
-
-            System.out.print("\tEnter roomType:");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("roomType CANNOT be empty!");
-                System.out.print("\tEnter roomType again:");
-                input = in.readLine();
-            }
-            query += input + "');";
-
-            esql.executeUpdate(query);
+            String[] args = {readRequired("hotelID"), readRequired("roomNo"), readRequired("roomType")};
+            executeOperation(esql, 2, args, System.out);
             System.out.println("Success!");
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -395,44 +970,9 @@ public class DBProject {
     public static void addMaintenanceCompany(DBProject esql) {
         // Given maintenance Company details add the maintenance company in the DB
         try {
-            String query = "INSERT INTO MaintenanceCompany(cmpID,name";
-            System.out.print("\tEnter cmpID:");
-            String input1 = in.readLine();
-            while (input1.isEmpty()) {
-                System.out.println("cmpID CANNOT be empty!");
-                System.out.print("\tEnter cmpID again:");
-                input1 = in.readLine();
-            }
-
-            System.out.print("\tEnter name:");
-            String input2 = in.readLine();
-            while (input2.isEmpty()) {
-                System.out.println("name CANNOT be empty!");
-                System.out.print("\tEnter name again:");
-                input2 = in.readLine();
-            }
-
-            System.out.print("\tEnter address:");
-            String input3 = in.readLine();
-            if (!input3.isEmpty())
-                query += ",address";
-
-            System.out.print("\tEnter isCertified:");
-            String input4 = in.readLine();
-            while (input4.isEmpty()) {
-                System.out.println("isCertified CANNOT be empty!");
-                System.out.print("\tEnter isCertified again:");
-                input4 = in.readLine();
-            }
-
-            query += ",isCertified) VALUES(" + input1 + ",'" + input2 + "',";
-
-            if (!input3.isEmpty())
-                query += "'" + input3 + "',";
-
-            query += input4 + ");";
-
-            esql.executeUpdate(query);
+            String[] args = {readRequired("cmpID"), readRequired("name"), readOptional("address"),
+                    readRequired("isCertified")};
+            executeOperation(esql, 3, args, System.out);
             System.out.println("Success!");
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -442,68 +982,10 @@ public class DBProject {
     public static void addRepair(DBProject esql) {
         // Given repair details add repair in the DB
         try {
-            String query = "INSERT INTO Repair(rID,hotelID,roomNo,mCompany,repairDate";
-            System.out.print("\tEnter rID:");
-            String input1 = in.readLine();
-            while (input1.isEmpty()) {
-                System.out.println("rID CANNOT be empty!");
-                System.out.print("\tEnter rID again:");
-                input1 = in.readLine();
-            }
-
-            System.out.print("\tEnter hotelID:");
-            String input2 = in.readLine();
-            while (input2.isEmpty()) {
-                System.out.println("hotelID CANNOT be empty!");
-                System.out.print("\tEnter hotelID again:");
-                input2 = in.readLine();
-            }
-
-            System.out.print("\tEnter roomNo:");
-            String input3 = in.readLine();
-            while (input3.isEmpty()) {
-                System.out.println("roomNo CANNOT be empty!");
-                System.out.print("\tEnter roomNo again:");
-                input3 = in.readLine();
-            }
-
-            System.out.print("\tEnter mCompany:");
-            String input4 = in.readLine();
-            while (input4.isEmpty()) {
-                System.out.println("mCompany CANNOT be empty!");
-                System.out.print("\tEnter mCompany again:");
-                input4 = in.readLine();
-            }
-
-            System.out.print("\tEnter repairDate:");
-            String input5 = in.readLine();
-            while (input5.isEmpty()) {
-                System.out.println("repairDate CANNOT be empty!");
-                System.out.print("\tEnter repairDate again:");
-                input5 = in.readLine();
-            }
-
-            System.out.print("\tEnter description:");
-            String input6 = in.readLine();
-            if (!input6.isEmpty())
-                query += ",description";
-
-            System.out.print("\tEnter repairType:");
-            String input7 = in.readLine();
-            if (!input6.isEmpty())
-                query += ",repairType";
-
-            query += ") VALUES(" + input1 + "," + input2 + "," + input3 + "," + input4 + ",'" + input5 + "'";
-
-            if (!input6.isEmpty())
-                query += ",'" + input6;
-
-            if (!input7.isEmpty())
-                query += ",'" + input7;
-
-            query += ");";
-
-            esql.executeUpdate(query);
+            String[] args = {readRequired("rID"), readRequired("hotelID"), readRequired("roomNo"),
+                    readRequired("mCompany"), readRequired("repairDate"), readOptional("description"),
+                    readOptional("repairType")};
+            executeOperation(esql, 4, args, System.out);
             System.out.println("Success!");
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -513,77 +995,20 @@ public class DBProject {
     public static void bookRoom(DBProject esql) {
         // Given hotelID, roomNo and customer Name create a booking in the DB
         try {
-            String query = "INSERT INTO Booking(bID,customer,hotelID,roomNo,bookingDate,";
-            System.out.print("\tEnter bID:");
-            String input1 = in.readLine();
-            while (input1.isEmpty()) {
-                System.out.println("bID CANNOT be empty!");
-                System.out.print("\tEnter bID again:");
-                input1 = in.readLine();
-            }
-
-            System.out.print("\tEnter fName:");
-            String input2 = in.readLine();
-            while (input2.isEmpty()) {
-                System.out.println("fName CANNOT be empty!");
-                System.out.print("\tEnter fName again:");
-                input2 = in.readLine();
-            }
-
-            System.out.print("\tEnter lName:");
-            String input3 = in.readLine();
-            while (input3.isEmpty()) {
-                System.out.println("lName CANNOT be empty!");
-                System.out.print("\tEnter lName again:");
-                input3 = in.readLine();
-            }
-
-            System.out.print("\tEnter hotelID:");
-            String input4 = in.readLine();
-            while (input4.isEmpty()) {
-                System.out.println("hotelID CANNOT be empty!");
-                System.out.print("\tEnter hotelID again:");
-                input4 = in.readLine();
-            }
-
-            System.out.print("\tEnter roomNo:");
-            String input5 = in.readLine();
-            while (input5.isEmpty()) {
-                System.out.println("roomNo CANNOT be empty!");
-                System.out.print("\tEnter roomNo again:");
-                input5 = in.readLine();
-            }
-
-            System.out.print("\tEnter bookingDate:");
-            String input6 = in.readLine();
-            while (input6.isEmpty()) {
-                System.out.println("bookingDate CANNOT be empty!");
-                System.out.print("\tEnter bookingDate again:");
-                input6 = in.readLine();
-            }
-
-            System.out.print("\tEnter noOfPeople:");
-            String input7 = in.readLine();
-            if (!input7.isEmpty())
-                query += "noOfPeople,";
-
-            System.out.print("\tEnter price:");
-            String input8 = in.readLine();
-            while (input8.isEmpty()) {
-                System.out.println("price CANNOT be empty!");
-                System.out.print("\tEnter price again:");
-                input8 = in.readLine();
+            String[] args = {readRequired("bID"), readRequired("fName"), readRequired("lName"),
+                    readRequired("hotelID"), readRequired("roomNo"), readRequired("bookingDate"),
+                    readOptional("noOfPeople"), readRequired("price"), ""};
+            try {
+                args[8] = chooseCustomer(esql, args[1], args[2]);
+            } catch (SQLException e) {
+                if (!journaling())
+                    throw e;
+                // database unreachable, the journaled insert looks the name up when applied
+                args[8] = "";
             }
-
-            query += "price) VALUES(" + input1 + ",(select customerid from customer where fname='" + input2
-                    + "' and lname='" + input3 + "')," + input4 + "," + input5 + ",'" + input6 + "',";
-
-            if (!input7.isEmpty())
-                query += input7 + ",";
-
-            query += input8 + ");";
-
-            esql.executeUpdate(query);
+            if (args[8] == null)
+                return;
+            executeOperation(esql, 5, args, System.out);
             System.out.println("Success!");
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -593,44 +1018,9 @@ public class DBProject {
     public static void assignHouseCleaningToRoom(DBProject esql) {
         // Given Staff SSN, HotelID, roomNo Assign the staff to the room
         try {
-            String query = "INSERT INTO Assigned VALUES(";
-            System.out.print("\tEnter asgID:");
-            String input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("asgID CANNOT be empty!");
-                System.out.print("\tEnter asgID again:");
-                input = in.readLine();
-            }
-            query += input + ",";
-
-            System.out.print("\tEnter staffID:");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("staffID CANNOT be empty!");
-                System.out.print("\tEnter staffID again:");
-                input = in.readLine();
-            }
-            query += input + ",";
-
-            System.out.print("\tEnter hotelID:");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("hotelID CANNOT be empty!");
-                System.out.print("\tEnter hotelID again:");
-                input = in.readLine();
-            }
-            query += input + ",";
-
-            System.out.print("\tEnter roomNo:");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("roomNo CANNOT be empty!");
-                System.out.print("\tEnter roomNo again:");
-                input = in.readLine();
-            }
-            query += input + ");";
-
-            esql.executeUpdate(query);
+            String[] args = {readRequired("asgID"), readRequired("staffID"), readRequired("hotelID"),
+                    readRequired("roomNo")};
+            executeOperation(esql, 6, args, System.out);
             System.out.println("Success!");
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -640,51 +1030,9 @@ public class DBProject {
     public static void repairRequest(DBProject esql) {
         // Given a hotelID, Staff SSN, roomNo, repairID , date create a repair request in the DB
         try {
-            String query = "INSERT INTO Request VALUES(";
-            System.out.print("\tEnter reqID:");
-            String input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("reqID CANNOT be empty!");
-                System.out.print("\tEnter reqID again:");
-                input = in.readLine();
-            }
-            query += input + ",";
-
-            System.out.print("\tEnter managerID:");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("managerID CANNOT be empty!");
-                System.out.print("\tEnter managerID again:");
-                input = in.readLine();
-            }
-            query += input + ",";
-
-            System.out.print("\tEnter repairID:");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("repairID CANNOT be empty!");
-                System.out.print("\tEnter repairID again:");
-                input = in.readLine();
-            }
-            query += input + ",'";
-
-            System.out.print("\tEnter requestDate:");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("requestDate CANNOT be empty!");
-                System.out.print("\tEnter requestDate again:");
-                input = in.readLine();
-            }
-            query += input + "'";
-
-            System.out.print("\tEnter description:");
-            input = in.readLine();
-            if (!input.isEmpty())
-                query += ",'" + input + "'";
-
-            query += ");";
-
-            esql.executeUpdate(query);
+            String[] args = {readRequired("reqID"), readRequired("managerID"), readRequired("repairID"),
+                    readRequired("requestDate"), readOptional("description")};
+            executeOperation(esql, 7, args, System.out);
             System.out.println("Success!");
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -694,18 +1042,8 @@ public class DBProject {
     public static void numberOfAvailableRooms(DBProject esql) {
         // Given a hotelID, get the count of rooms available
         try {
-            String query =
-                    "select a.anum-b.bnum available from\n" + "(select count(*) anum from room where room.hotelid='";
-            System.out.print("\tEnter hotelID:");
-            String input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter a hotelID!");
-                System.out.print("\tEnter hotelID again:");
-                input = in.readLine();
-            }
-            query += input + "') a, (select count(*) bnum from booking where booking.hotelid='" + input + "') b;";
-
-            int rowCount = esql.executeQuery(query);
+            String[] args = {readRequired("\tEnter hotelID:", "Please enter a hotelID!", "\tEnter hotelID again:")};
+            int rowCount = executeOperation(esql, 8, args, System.out);
             System.out.println("total row(s): " + rowCount + "\n");
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -715,17 +1053,8 @@ public class DBProject {
     public static void numberOfBookedRooms(DBProject esql) {
         // Given a hotelID, get the count of rooms booked
         try {
-            String query = "select count(*) booked from booking where booking.hotelid='";
-            System.out.print("\tEnter hotelID:");
-            String input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter a hotelID!");
-                System.out.print("\tEnter hotelID again:");
-                input = in.readLine();
-            }
-            query += input + "';";
-
-            int rowCount = esql.executeQuery(query);
+            String[] args = {readRequired("\tEnter hotelID:", "Please enter a hotelID!", "\tEnter hotelID again:")};
+            int rowCount = executeOperation(esql, 9, args, System.out);
             System.out.println("total row(s): " + rowCount + "\n");
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -735,27 +1064,10 @@ public class DBProject {
     public static void listHotelRoomBookingsForAWeek(DBProject esql) {
         // Given a hotelID, date - list all the rooms available for a week(including the input date)
         try {
-            String query = "select roomno from room where hotelid='";
-            System.out.print("\tEnter hotelID:");
-            String input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter a hotelID!");
-                System.out.print("\tEnter hotelID again:");
-                input = in.readLine();
-            }
-            query += input + "' and roomno not in(select roomno from booking where booking.hotelid='" + input
-                    + "'and bookingdate>='";
-
-            System.out.print("\tEnter date(DD/MM/YYYY):");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter a date!");
-                System.out.print("\tEnter date again(DD/MM/YYYY):");
-                input = in.readLine();
-            }
-            query += input + "' and bookingdate<date'" + input + "'+integer'7');";
-
-            int rowCount = esql.executeQuery(query);
+            String[] args = {readRequired("\tEnter hotelID:", "Please enter a hotelID!", "\tEnter hotelID again:"),
+                    readRequired("\tEnter date(DD/MM/YYYY):", "Please enter a date!",
+                            "\tEnter date again(DD/MM/YYYY):")};
+            int rowCount = executeOperation(esql, 10, args, System.out);
             System.out.println("total row(s): " + rowCount + "\n");
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -765,35 +1077,13 @@ public class DBProject {
     public static void topKHighestRoomPriceForADateRange(DBProject esql) {
         // List Top K Rooms with the highest price for a given date range
         try {
-            String query = "select price from booking where bookingdate>='";
-            System.out.print("\tEnter date from(DD/MM/YYYY):");
-            String input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter a start date!");
-                System.out.print("\tEnter start date again:");
-                input = in.readLine();
-            }
-            query += input + "' and bookingdate<='";
-
-            System.out.print("\tEnter to(DD/MM/YYYY):");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter an end date!");
-                System.out.print("\tEnter end date again(DD/MM/YYYY):");
-                input = in.readLine();
-            }
-            query += input + "' order by price desc limit ";
-
-            System.out.print("\tEnter top k:");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter top k!");
-                System.out.print("\tEnter top k again:");
-                input = in.readLine();
-            }
-            query += input + ";";
-
-            int rowCount = esql.executeQuery(query);
+            String[] args = {
+                    readRequired("\tEnter date from(DD/MM/YYYY):", "Please enter a start date!",
+                            "\tEnter start date again:"),
+                    readRequired("\tEnter to(DD/MM/YYYY):", "Please enter an end date!",
+                            "\tEnter end date again(DD/MM/YYYY):"),
+                    readRequired("\tEnter top k:", "Please enter top k!", "\tEnter top k again:")};
+            int rowCount = executeOperation(esql, 11, args, System.out);
             System.out.println("total row(s): " + rowCount + "\n");
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -803,35 +1093,13 @@ public class DBProject {
     public static void topKHighestPriceBookingsForACustomer(DBProject esql) {
         // Given a customer Name, List Top K highest booking price for a customer
         try {
-            String query = "select price from booking b,customer c where c.fname='";
-            System.out.print("\tEnter fName:");
-            String input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter a fName!");
-                System.out.print("\tEnter fName again:");
-                input = in.readLine();
-            }
-            query += input + "' and c.lname='";
-
-            System.out.print("\tEnter lName:");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter a lName!");
-                System.out.print("\tEnter lName again:");
-                input = in.readLine();
-            }
-            query += input + "' and b.customer=c.customerid order by price desc limit ";
-
-            System.out.print("\tEnter top k:");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter top k!");
-                System.out.print("\tEnter top k again:");
-                input = in.readLine();
-            }
-            query += input + ";";
-
-            int rowCount = esql.executeQuery(query);
+            String[] args = {readRequired("\tEnter fName:", "Please enter a fName!", "\tEnter fName again:"),
+                    readRequired("\tEnter lName:", "Please enter a lName!", "\tEnter lName again:"),
+                    readRequired("\tEnter top k:", "Please enter top k!", "\tEnter top k again:"), ""};
+            args[3] = chooseCustomer(esql, args[0], args[1]);
+            if (args[3] == null)
+                return;
+            int rowCount = executeOperation(esql, 12, args, System.out);
             System.out.println("total row(s): " + rowCount + "\n");
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -841,53 +1109,17 @@ public class DBProject {
     public static void totalCostForCustomer(DBProject esql) {
         // Given a hotelID, customer Name and date range get the total cost incurred by the customer
         try {
-            String query = "select sum(price) from booking b,customer c where b.hotelid='";
-            System.out.print("\tEnter hotelID:");
-            String input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter a hotelID!");
-                System.out.print("\tEnter hotelID again:");
-                input = in.readLine();
-            }
-            query += input + "' and c.fname='";
-
-            System.out.print("\tEnter fName:");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter a fName!");
-                System.out.print("\tEnter fName again:");
-                input = in.readLine();
-            }
-            query += input + "' and c.lname='";
-
-            System.out.print("\tEnter lName:");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter a lName!");
-                System.out.print("\tEnter lName again:");
-                input = in.readLine();
-            }
-            query += input + "' and b.customer=c.customerid and b.bookingdate>='";
-
-            System.out.print("\tEnter date from(DD/MM/YYYY):");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter a start date!");
-                System.out.print("\tEnter date from again(DD/MM/YYYY):");
-                input = in.readLine();
-            }
-            query += input + "' and\n" + "b.bookingdate<='";
-
-            System.out.print("\tEnter to(DD/MM/YYYY):");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter an end date!");
-                System.out.print("\tEnter end date again(DD/MM/YYYY):");
-                input = in.readLine();
-            }
-            query += input + "';";
-
-            int rowCount = esql.executeQuery(query);
+            String[] args = {readRequired("\tEnter hotelID:", "Please enter a hotelID!", "\tEnter hotelID again:"),
+                    readRequired("\tEnter fName:", "Please enter a fName!", "\tEnter fName again:"),
+                    readRequired("\tEnter lName:", "Please enter a lName!", "\tEnter lName again:"),
+                    readRequired("\tEnter date from(DD/MM/YYYY):", "Please enter a start date!",
+                            "\tEnter date from again(DD/MM/YYYY):"),
+                    readRequired("\tEnter to(DD/MM/YYYY):", "Please enter an end date!",
+                            "\tEnter end date again(DD/MM/YYYY):"), ""};
+            args[5] = chooseCustomer(esql, args[1], args[2]);
+            if (args[5] == null)
+                return;
+            int rowCount = executeOperation(esql, 13, args, System.out);
             System.out.println("total row(s): " + rowCount + "\n");
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -897,17 +1129,9 @@ public class DBProject {
     public static void listRepairsMade(DBProject esql) {
         // Given a Maintenance company name list all the repairs along with repairType, hotelID and roomNo
         try {
-            String query = "select rid,hotelid,roomno,repairtype from repair r,maintenancecompany m where m.name='";
-            System.out.print("\tEnter company name:");
-            String input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter a company name!");
-                System.out.print("\tEnter company name again:");
-                input = in.readLine();
-            }
-            query += input + "' and r.mcompany=m.cmpid;";
-
-            int rowCount = esql.executeQuery(query);
+            String[] args = {readRequired("\tEnter company name:", "Please enter a company name!",
+                    "\tEnter company name again:")};
+            int rowCount = executeOperation(esql, 14, args, System.out);
             System.out.println("total row(s): " + rowCount + "\n");
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -917,18 +1141,8 @@ public class DBProject {
     public static void topKMaintenanceCompany(DBProject esql) {
         // List Top K Maintenance Company Names based on total repair count (descending order)
         try {
-            String query = "select name " + "from repair r,maintenancecompany m " + "where r.mcompany=m.cmpid "
-                    + "group by name " + "order by count(*) desc " + "limit ";
-            System.out.print("\tEnter top k:");
-            String input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter top k!");
-                System.out.print("\tEnter top k again:");
-                input = in.readLine();
-            }
-            query += input + ";";
-
-            int rowCount = esql.executeQuery(query);
+            String[] args = {readRequired("\tEnter top k:", "Please enter top k!", "\tEnter top k again:")};
+            int rowCount = executeOperation(esql, 15, args, System.out);
             System.out.println("total row(s): " + rowCount + "\n");
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -938,30 +1152,3308 @@ public class DBProject {
     public static void numberOfRepairsForEachRoomPerYear(DBProject esql) {
         // Given a hotelID, roomNo, get the count of repairs per year
         try {
-            String query = "select extract(year from repairdate),count(*) from repair where hotelid='";
-            System.out.print("\tEnter hotelID:");
-            String input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter a hotelID!");
-                System.out.print("\tEnter hotelID again:");
-                input = in.readLine();
+            String[] args = {readRequired("\tEnter hotelID:", "Please enter a hotelID!", "\tEnter hotelID again:"),
+                    readRequired("\tEnter roomNo:", "Please enter a roomNo!", "\tEnter roomNo again:")};
+            int rowCount = executeOperation(esql, 16, args, System.out);
+            System.out.println("total row(s): " + rowCount + "\n");
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+    }//end numberOfRepairsForEachRoomPerYear
+
+    /*
+     * ----------------------------------------------------------------------
+     * Booking snapshot analytics
+     * ----------------------------------------------------------------------
+     * Booking and Repair are exported into a local columnar snapshot and
+     * queried in-process so that ad-hoc analysis does not run against the
+     * production database. Each refresh appends one segment per table with
+     * the rows inserted since the last one. The keys are typed in by the
+     * clerks, so insertion is tracked by insertTx, the inserting transaction:
+     * a refresh exports the transactions from the last segment's watermark
+     * up to the xmin of a fresh snapshot, below which every transaction has
+     * finished. Updates and deletes of exported rows are only picked up by a
+     * rebuild.
+     */
+
+    // directory holding the snapshot segments, override with -Dsnapshot.dir
+    static final File SNAPSHOT_DIR = new File(System.getProperty("snapshot.dir", "snapshot"));
+
+    // the first transaction not known to be finished, the upper bound of a refresh or catch-up
+    static final String INSERT_HORIZON = "select txid_snapshot_xmin(txid_current_snapshot());";
+
+    // pool shared by the parallel in-process scans
+    static final ForkJoinPool pool = new ForkJoinPool();
+
+    // layout of the exported tables: key column first, then the int columns
+    static final String BOOKING_SNAPSHOT = "booking";
+    static final String[] BOOKING_COLUMNS = {"bid", "customer", "hotelid", "roomno", "day", "price", "people"};
+    static final int B_CUSTOMER = 0, B_HOTEL = 1, B_ROOM = 2, B_DAY = 3, B_PRICE = 4, B_PEOPLE = 5;
+    static final String BOOKING_EXPORT = "select bid::int8, customer::int4, hotelid::int4, roomno::int4, "
+            + "(bookingdate - date '1970-01-01')::int4, (price * 100)::int4, coalesce(noofpeople, -1)::int4 "
+            + "from " + archiveUnion("booking", "booking", null);
+
+    static final String REPAIR_SNAPSHOT = "repair";
+    static final String[] REPAIR_COLUMNS = {"rid", "hotelid", "roomno", "mcompany", "day"};
+    static final int R_HOTEL = 0, R_ROOM = 1, R_COMPANY = 2, R_DAY = 3;
+    static final String REPAIR_EXPORT = "select rid::int8, hotelid::int4, roomno::int4, mcompany::int4, "
+            + "(repairdate - date '1970-01-01')::int4 from " + archiveUnion("repair", "repair", null);
+
+    /**
+     * One immutable, memory-mapped segment of a snapshot table. The file
+     * starts with a 32 byte header (magic, version, row count, column count,
+     * first inserting transaction not exported) followed by the key column as longs and every other
+     * column as a contiguous array of ints.
+     */
+    static class Segment {
+        static final int MAGIC = 0x44425347;
+        static final int VERSION = 2;
+        static final int HEADER_BYTES = 32;
+
+        final File file;
+        final int rows;
+        final long insertTx;
+        final LongBuffer key;
+        final IntBuffer[] columns;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                if (buf.getInt(0) != MAGIC)
+                    throw new IOException("Not a snapshot segment: " + file);
+                if (buf.getInt(4) != VERSION)
+                    throw new IOException("Snapshot segment " + file + " is from an older version, rebuild the snapshot");
+                this.rows = buf.getInt(8);
+                int numCol = buf.getInt(12);
+                this.insertTx = buf.getLong(16);
+
+                buf.position(HEADER_BYTES);
+                this.key = buf.slice().asLongBuffer();
+                this.columns = new IntBuffer[numCol - 1];
+                int offset = HEADER_BYTES + rows * 8;
+                for (int c = 0; c < columns.length; c++) {
+                    buf.position(offset);
+                    columns[c] = buf.slice().asIntBuffer();
+                    offset += rows * 4;
+                }
+            } finally {
+                // the mapping stays valid after the channel is closed
+                raf.close();
             }
-            query += input + "' and roomno='";
+        }//end Segment
 
-            System.out.print("\tEnter roomNo:");
-            input = in.readLine();
-            while (input.isEmpty()) {
-                System.out.println("Please enter a roomNo!");
-                System.out.print("\tEnter roomNo again:");
-                input = in.readLine();
+        /**
+         * Writes a new segment atomically: the data goes to a temporary file
+         * which is renamed once complete.
+         */
+        static void write(File file, int rows, long insertTx, long[] key, int[][] columns) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                FileChannel ch = raf.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(columns.length + 1).putLong(insertTx);
+                header.clear();
+                ch.write(header);
+
+                ByteBuffer buf = ByteBuffer.allocate(Math.max(rows, 1) * 8);
+                buf.asLongBuffer().put(key, 0, rows);
+                buf.limit(rows * 8);
+                ch.write(buf);
+                for (int[] column : columns) {
+                    buf.clear();
+                    buf.asIntBuffer().put(column, 0, rows);
+                    buf.limit(rows * 4);
+                    ch.write(buf);
+                }
+                ch.force(true);
+            } finally {
+                raf.close();
             }
-            query += input + "' group by extract(year from repairdate);";
+            if (!tmp.renameTo(file))
+                throw new IOException("Unable to create " + file);
+        }//end write
+    }//end Segment
 
-            int rowCount = esql.executeQuery(query);
-            System.out.println("total row(s): " + rowCount + "\n");
+    /**
+     * A snapshot table made of all the segments found on disk, ordered by
+     * the sequence number in their file name.
+     */
+    static class SnapshotTable {
+        final String name;
+        final List<Segment> segments = new ArrayList<Segment>();
+
+        SnapshotTable(String name) throws IOException {
+            this.name = name;
+            File[] files = SNAPSHOT_DIR.listFiles();
+            if (files == null)
+                return;
+            TreeMap<Integer, File> ordered = new TreeMap<Integer, File>();
+            for (File f : files) {
+                String n = f.getName();
+                if (n.startsWith(name + ".") && n.endsWith(".seg"))
+                    ordered.put(Integer.valueOf(n.substring(name.length() + 1, n.length() - 4)), f);
+            }
+            for (File f : ordered.values())
+                segments.add(new Segment(f));
+        }//end SnapshotTable
+
+        long insertTx() {
+            return segments.isEmpty() ? 0 : segments.get(segments.size() - 1).insertTx;
+        }
+
+        long rows() {
+            long rows = 0;
+            for (Segment s : segments)
+                rows += s.rows;
+            return rows;
+        }
+
+        /**
+         * Exports the rows inserted since the last segment into a new segment.
+         *
+         * @return the number of rows appended
+         */
+        int refresh(DBProject esql, String export, String[] names) throws SQLException, IOException {
+            long horizon = Long.parseLong(esql.executeQueryAndReturnResult(INSERT_HORIZON).get(0).get(0));
+            String query = export + " where inserttx>=" + insertTx() + " and inserttx<" + horizon + " order by 1";
+
+            // streamed through a cursor, the driver would otherwise hold the whole result as strings
+            final int numCol = names.length - 1;
+            class Collector extends RowHandler {
+                long[] key = new long[1024];
+                int[][] columns = new int[numCol][1024];
+                int rows = 0;
+
+                void row(ResultSet rs) throws SQLException {
+                    if (rows == key.length) {
+                        key = Arrays.copyOf(key, rows * 2);
+                        for (int c = 0; c < columns.length; c++)
+                            columns[c] = Arrays.copyOf(columns[c], rows * 2);
+                    }
+                    key[rows] = rs.getLong(1);
+                    for (int c = 0; c < columns.length; c++)
+                        columns[c][rows] = rs.getInt(c + 2);
+                    rows++;
+                }
+            }//end Collector
+            Collector collected = new Collector();
+            int rows = (int) esql.streamQuery(query, collected);
+            if (rows == 0)
+                return 0;
+
+            if (!SNAPSHOT_DIR.isDirectory() && !SNAPSHOT_DIR.mkdirs())
+                throw new IOException("Unable to create " + SNAPSHOT_DIR);
+            File file = new File(SNAPSHOT_DIR, name + "." + segments.size() + ".seg");
+            Segment.write(file, rows, horizon, collected.key, collected.columns);
+            segments.add(new Segment(file));
+            return rows;
+        }//end refresh
+
+        /**
+         * Removes every segment so that the next refresh exports the whole table.
+         */
+        void clear() throws IOException {
+            for (Segment s : segments)
+                if (!s.file.delete())
+                    throw new IOException("Unable to delete " + s.file);
+            segments.clear();
+        }//end clear
+    }//end SnapshotTable
+
+    /**
+     * A parallel scan over a snapshot table. The table is cut into chunks of
+     * at most CHUNK_ROWS rows which are scanned on the fork/join pool, the
+     * partial results are then merged pairwise.
+     */
+    abstract static class Scan<R> {
+        static final int CHUNK_ROWS = 1 << 16;
+
+        /** Scans rows [from, to) of a segment. */
+        abstract R scan(Segment s, int from, int to);
+
+        /** Combines two partial results. */
+        abstract R merge(R a, R b);
+
+        R run(SnapshotTable table) {
+            final List<Segment> segs = new ArrayList<Segment>();
+            final List<Integer> starts = new ArrayList<Integer>();
+            for (Segment s : table.segments)
+                for (int from = 0; from < s.rows; from += CHUNK_ROWS) {
+                    segs.add(s);
+                    starts.add(from);
+                }
+            if (segs.isEmpty())
+                return scan(null, 0, 0);
+
+            class ChunkTask extends RecursiveTask<R> {
+                final int lo, hi;
+
+                ChunkTask(int lo, int hi) {
+                    this.lo = lo;
+                    this.hi = hi;
+                }
+
+                protected R compute() {
+                    if (hi - lo == 1) {
+                        Segment s = segs.get(lo);
+                        int from = starts.get(lo);
+                        return scan(s, from, Math.min(s.rows, from + CHUNK_ROWS));
+                    }
+                    int mid = (lo + hi) >>> 1;
+                    ChunkTask left = new ChunkTask(lo, mid);
+                    left.fork();
+                    R right = new ChunkTask(mid, hi).compute();
+                    return merge(left.join(), right);
+                }
+            }
+            return pool.invoke(new ChunkTask(0, segs.size()));
+        }//end run
+    }//end Scan
+
+    /**
+     * Row filter shared by the snapshot queries: an optional hotel and an
+     * inclusive range of epoch days.
+     */
+    static class SnapshotFilter {
+        int hotelID = -1;
+        int fromDay = Integer.MIN_VALUE;
+        int toDay = Integer.MAX_VALUE;
+
+        boolean accept(int hotel, int day) {
+            return (hotelID < 0 || hotel == hotelID) && day >= fromDay && day <= toDay;
+        }
+    }//end SnapshotFilter
+
+    /**
+     * Converts an epoch day to year * 100 + month (proleptic Gregorian).
+     */
+    static int yearMonth(int epochDay) {
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int doe = z - era * 146097;
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        return year * 100 + month;
+    }//end yearMonth
+
+    /**
+     * Growable list of ints, used to collect prices without boxing.
+     */
+    static class IntList {
+        int[] values = new int[16];
+        int size;
+
+        void add(int v) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+
+        IntList addAll(IntList other) {
+            for (int i = 0; i < other.size; i++)
+                add(other.values[i]);
+            return this;
+        }
+    }//end IntList
+
+    public static void snapshotAnalytics(DBProject esql) {
+        // Refresh the local Booking/Repair snapshot and run in-process analytics on it
+        boolean keepon = true;
+        while (keepon) {
+            System.out.println("SNAPSHOT ANALYTICS");
+            System.out.println("------------------");
+            System.out.println("1. Refresh snapshot (append new rows)");
+            System.out.println("2. Rebuild snapshot from scratch");
+            System.out.println("3. Price percentiles per hotel");
+            System.out.println("4. Top k spenders");
+            System.out.println("5. Seasonal trends (bookings per month)");
+            System.out.println("6. Repairs per year");
+            System.out.println("7. < BACK");
+            try {
+                switch (readChoice()) {
+                    case 1:
+                        refreshSnapshot(esql, false);
+                        break;
+                    case 2:
+                        refreshSnapshot(esql, true);
+                        break;
+                    case 3:
+                        snapshotPricePercentiles(esql);
+                        break;
+                    case 4:
+                        snapshotTopSpenders(esql);
+                        break;
+                    case 5:
+                        snapshotSeasonalTrends(esql);
+                        break;
+                    case 6:
+                        snapshotRepairsPerYear(esql);
+                        break;
+                    case 7:
+                        keepon = false;
+                        break;
+                    default:
+                        System.out.println("Unrecognized choice!");
+                        break;
+                }//end switch
+            } catch (Exception e) {
+                System.err.println(e.getMessage());
+            }
+        }//end while
+    }//end snapshotAnalytics
+
+    public static void refreshSnapshot(DBProject esql, boolean rebuild) throws SQLException, IOException {
+        long start = System.currentTimeMillis();
+        SnapshotTable bookings = new SnapshotTable(BOOKING_SNAPSHOT);
+        SnapshotTable repairs = new SnapshotTable(REPAIR_SNAPSHOT);
+        if (rebuild) {
+            bookings.clear();
+            repairs.clear();
+        }
+        int newBookings = bookings.refresh(esql, BOOKING_EXPORT, BOOKING_COLUMNS);
+        int newRepairs = repairs.refresh(esql, REPAIR_EXPORT, REPAIR_COLUMNS);
+        System.out.println("Appended " + newBookings + " booking(s) and " + newRepairs + " repair(s) in "
+                + (System.currentTimeMillis() - start) + " ms");
+        System.out.println("Snapshot holds " + bookings.rows() + " booking(s) in " + bookings.segments.size()
+                + " segment(s), " + repairs.rows() + " repair(s) in " + repairs.segments.size() + " segment(s)\n");
+    }//end refreshSnapshot
+
+    /*
+     * Prompts for the optional hotel and date range of a snapshot query
+     */
+    static SnapshotFilter readSnapshotFilter(DBProject esql, boolean withHotel) throws IOException, SQLException {
+        SnapshotFilter filter = new SnapshotFilter();
+        if (withHotel) {
+            String input = readOptional("hotelID(empty for all)");
+            if (!input.isEmpty())
+                filter.hotelID = Integer.parseInt(input.trim());
+        }
+        String input = readOptional("date from(DD/MM/YYYY, empty for all)");
+        if (!input.isEmpty())
+            filter.fromDay = esql.toEpochDay(input);
+        input = readOptional("to(DD/MM/YYYY, empty for all)");
+        if (!input.isEmpty())
+            filter.toDay = esql.toEpochDay(input);
+        return filter;
+    }//end readSnapshotFilter
+
+    public static void snapshotPricePercentiles(DBProject esql) throws IOException, SQLException {
+        final SnapshotFilter filter = readSnapshotFilter(esql, true);
+        long start = System.currentTimeMillis();
+        Map<Integer, IntList> prices = new Scan<Map<Integer, IntList>>() {
+            Map<Integer, IntList> scan(Segment s, int from, int to) {
+                Map<Integer, IntList> result = new HashMap<Integer, IntList>();
+                for (int i = from; i < to; i++) {
+                    int hotel = s.columns[B_HOTEL].get(i);
+                    if (!filter.accept(hotel, s.columns[B_DAY].get(i)))
+                        continue;
+                    IntList list = result.get(hotel);
+                    if (list == null)
+                        result.put(hotel, list = new IntList());
+                    list.add(s.columns[B_PRICE].get(i));
+                }
+                return result;
+            }
+
+            Map<Integer, IntList> merge(Map<Integer, IntList> a, Map<Integer, IntList> b) {
+                for (Map.Entry<Integer, IntList> e : b.entrySet()) {
+                    IntList list = a.get(e.getKey());
+                    a.put(e.getKey(), list == null ? e.getValue() : list.addAll(e.getValue()));
+                }
+                return a;
+            }
+        }.run(new SnapshotTable(BOOKING_SNAPSHOT));
+
+        System.out.println("hotelid\tbookings\tp50\tp90\tp99\tmax\t");
+        for (Map.Entry<Integer, IntList> e : new TreeMap<Integer, IntList>(prices).entrySet()) {
+            IntList list = e.getValue();
+            Arrays.sort(list.values, 0, list.size);
+            System.out.println(e.getKey() + "\t" + list.size + "\t" + percentile(list, 50) + "\t"
+                    + percentile(list, 90) + "\t" + percentile(list, 99) + "\t" + percentile(list, 100) + "\t");
+        }
+        System.out.println("total row(s): " + prices.size() + " (" + (System.currentTimeMillis() - start) + " ms)\n");
+    }//end snapshotPricePercentiles
+
+    /*
+     * Nearest-rank percentile of a sorted list of prices in cents
+     */
+    static String percentile(IntList sorted, int p) {
+        int rank = Math.max(1, (int) Math.ceil(p / 100.0 * sorted.size));
+        int cents = sorted.values[rank - 1];
+        return cents / 100 + "." + (cents % 100 < 10 ? "0" : "") + cents % 100;
+    }//end percentile
+
+    public static void snapshotTopSpenders(DBProject esql) throws IOException, SQLException {
+        final SnapshotFilter filter = readSnapshotFilter(esql, true);
+        int k = Integer.parseInt(readRequired("top k").trim());
+        long start = System.currentTimeMillis();
+        Map<Integer, long[]> spent = new Scan<Map<Integer, long[]>>() {
+            Map<Integer, long[]> scan(Segment s, int from, int to) {
+                Map<Integer, long[]> result = new HashMap<Integer, long[]>();
+                for (int i = from; i < to; i++) {
+                    if (!filter.accept(s.columns[B_HOTEL].get(i), s.columns[B_DAY].get(i)))
+                        continue;
+                    int customer = s.columns[B_CUSTOMER].get(i);
+                    long[] total = result.get(customer);
+                    if (total == null)
+                        result.put(customer, total = new long[2]);
+                    total[0] += s.columns[B_PRICE].get(i);
+                    total[1]++;
+                }
+                return result;
+            }
+
+            Map<Integer, long[]> merge(Map<Integer, long[]> a, Map<Integer, long[]> b) {
+                for (Map.Entry<Integer, long[]> e : b.entrySet()) {
+                    long[] total = a.get(e.getKey());
+                    if (total == null) {
+                        a.put(e.getKey(), e.getValue());
+                    } else {
+                        total[0] += e.getValue()[0];
+                        total[1] += e.getValue()[1];
+                    }
+                }
+                return a;
+            }
+        }.run(new SnapshotTable(BOOKING_SNAPSHOT));
+
+        // keep the k largest totals in a min-heap
+        PriorityQueue<Map.Entry<Integer, long[]>> top = new PriorityQueue<Map.Entry<Integer, long[]>>(k + 1,
+                new java.util.Comparator<Map.Entry<Integer, long[]>>() {
+                    public int compare(Map.Entry<Integer, long[]> a, Map.Entry<Integer, long[]> b) {
+                        return Long.compare(a.getValue()[0], b.getValue()[0]);
+                    }
+                });
+        for (Map.Entry<Integer, long[]> e : spent.entrySet()) {
+            top.add(e);
+            if (top.size() > k)
+                top.poll();
+        }
+        List<Map.Entry<Integer, long[]>> sorted = new ArrayList<Map.Entry<Integer, long[]>>(top);
+        Collections.sort(sorted, Collections.reverseOrder(top.comparator()));
+
+        System.out.println("customer\tbookings\ttotal\t");
+        for (Map.Entry<Integer, long[]> e : sorted)
+            System.out.println(e.getKey() + "\t" + e.getValue()[1] + "\t" + e.getValue()[0] / 100 + "."
+                    + (e.getValue()[0] % 100 < 10 ? "0" : "") + e.getValue()[0] % 100 + "\t");
+        System.out.println("total row(s): " + sorted.size() + " (" + (System.currentTimeMillis() - start) + " ms)\n");
+    }//end snapshotTopSpenders
+
+    public static void snapshotSeasonalTrends(DBProject esql) throws IOException, SQLException {
+        final SnapshotFilter filter = readSnapshotFilter(esql, true);
+        long start = System.currentTimeMillis();
+        // per month of the year: number of bookings and total price in cents
+        long[][] months = new Scan<long[][]>() {
+            long[][] scan(Segment s, int from, int to) {
+                long[][] result = new long[12][2];
+                for (int i = from; i < to; i++) {
+                    int day = s.columns[B_DAY].get(i);
+                    if (!filter.accept(s.columns[B_HOTEL].get(i), day))
+                        continue;
+                    long[] month = result[yearMonth(day) % 100 - 1];
+                    month[0]++;
+                    month[1] += s.columns[B_PRICE].get(i);
+                }
+                return result;
+            }
+
+            long[][] merge(long[][] a, long[][] b) {
+                for (int m = 0; m < 12; m++) {
+                    a[m][0] += b[m][0];
+                    a[m][1] += b[m][1];
+                }
+                return a;
+            }
+        }.run(new SnapshotTable(BOOKING_SNAPSHOT));
+
+        System.out.println("month\tbookings\tavg price\t");
+        for (int m = 0; m < 12; m++)
+            System.out.println((m + 1) + "\t" + months[m][0] + "\t"
+                    + (months[m][0] == 0 ? "-" : String.format("%.2f", months[m][1] / 100.0 / months[m][0])) + "\t");
+        System.out.println("total row(s): 12 (" + (System.currentTimeMillis() - start) + " ms)\n");
+    }//end snapshotSeasonalTrends
+
+    public static void snapshotRepairsPerYear(DBProject esql) throws IOException, SQLException {
+        final SnapshotFilter filter = readSnapshotFilter(esql, true);
+        long start = System.currentTimeMillis();
+        Map<Integer, long[]> years = new Scan<Map<Integer, long[]>>() {
+            Map<Integer, long[]> scan(Segment s, int from, int to) {
+                Map<Integer, long[]> result = new HashMap<Integer, long[]>();
+                for (int i = from; i < to; i++) {
+                    int day = s.columns[R_DAY].get(i);
+                    if (!filter.accept(s.columns[R_HOTEL].get(i), day))
+                        continue;
+                    int year = yearMonth(day) / 100;
+                    long[] count = result.get(year);
+                    if (count == null)
+                        result.put(year, count = new long[1]);
+                    count[0]++;
+                }
+                return result;
+            }
+
+            Map<Integer, long[]> merge(Map<Integer, long[]> a, Map<Integer, long[]> b) {
+                for (Map.Entry<Integer, long[]> e : b.entrySet()) {
+                    long[] count = a.get(e.getKey());
+                    if (count == null)
+                        a.put(e.getKey(), e.getValue());
+                    else
+                        count[0] += e.getValue()[0];
+                }
+                return a;
+            }
+        }.run(new SnapshotTable(REPAIR_SNAPSHOT));
+
+        System.out.println("year\trepairs\t");
+        for (Map.Entry<Integer, long[]> e : new TreeMap<Integer, long[]>(years).entrySet())
+            System.out.println(e.getKey() + "\t" + e.getValue()[0] + "\t");
+        System.out.println("total row(s): " + years.size() + " (" + (System.currentTimeMillis() - start) + " ms)\n");
+    }//end snapshotRepairsPerYear
+
+    /*
+     * ----------------------------------------------------------------------
+     * Batch reports
+     * ----------------------------------------------------------------------
+     * The per hotel/room operations of the main menu computed for every
+     * hotel and room at once, each with a single set based query streamed
+     * to a CSV file.
+     */
+
+    // report name -> query, the name is used as the output file name
+    static final String[][] BATCH_REPORTS = {
+            {"hotel_rooms",
+                    "select h.hotelid, coalesce(r.rooms, 0) rooms, coalesce(b.booked, 0) booked, "
+                            + "coalesce(r.rooms, 0) - coalesce(b.booked, 0) available "
+                            + "from hotel h "
+                            + "left join (select hotelid, count(*) rooms from room group by hotelid) r "
+                            + "on r.hotelid = h.hotelid "
+                            + "left join (select hotelid, count(*) booked from " + archiveUnion("booking", "booking", null)
+                            + " group by hotelid) b "
+                            + "on b.hotelid = h.hotelid "
+                            + "order by h.hotelid"},
+            {"room_repairs_per_year",
+                    "select hotelid, roomno, extract(year from repairdate) repairyear, count(*) repairs "
+                            + "from " + archiveUnion("repair", "repair", null) + " "
+                            + "group by hotelid, roomno, extract(year from repairdate) "
+                            + "order by hotelid, roomno, repairyear"}};
+
+    public static void batchReports(DBProject esql) {
+        // Compute the booked/available rooms of every hotel and the yearly repairs of every room into files
+        try {
+            String input = readOptional("output directory(empty for reports)");
+            File dir = new File(input.isEmpty() ? "reports" : input);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                System.out.println("Unable to create " + dir);
+                return;
+            }
+
+            long total = System.currentTimeMillis();
+            for (String[] report : BATCH_REPORTS) {
+                long start = System.currentTimeMillis();
+                File file = new File(dir, report[0] + ".csv");
+                Writer out = new BufferedWriter(new FileWriter(file), 1 << 16);
+                long rowCount;
+                try {
+                    rowCount = esql.streamQueryAsCsv(report[1], out);
+                } finally {
+                    out.close();
+                }
+                System.out.println(file + ": " + rowCount + " row(s) in "
+                        + (System.currentTimeMillis() - start) / 1000.0 + " s");
+            }
+            System.out.println("Batch reports done in " + (System.currentTimeMillis() - total) / 1000.0 + " s\n");
         } catch (Exception e) {
             System.err.println(e.getMessage());
         }
-    }//end listRepairsMade
+    }//end batchReports
+
+    /*
+     * ----------------------------------------------------------------------
+     * Paged listings
+     * ----------------------------------------------------------------------
+     * Page oriented variants of the listing and top k operations. Pages are
+     * fetched with keyset (seek) pagination: the continuation token holds
+     * the sort key of the last row shown and the next page starts right
+     * after it through the index, so every page costs the same no matter
+     * how deep the user goes. No OFFSET is ever used.
+     */
+
+    /**
+     * A listing that can be fetched page by page. The rows must be ordered
+     * by the key returned by keys(), which has to be unique.
+     */
+    abstract static class PagedQuery {
+        final String tag;
+        final String header;
+
+        PagedQuery(String tag, String header) {
+            this.tag = tag;
+            this.header = header;
+        }
+
+        /** The query returning at most limit rows following the given keys, null for the first page. */
+        abstract String query(String[] after, int limit);
+
+        /** The sort key of a row of the result. */
+        abstract String[] keys(List<String> row);
+    }//end PagedQuery
+
+    /*
+     * Builds the opaque continuation token of a listing: the hex encoding
+     * of the listing tag followed by the keys of the last row returned.
+     */
+    static String encodeToken(String tag, String[] keys) {
+        StringBuilder plain = new StringBuilder(tag);
+        for (String key : keys)
+            plain.append(':').append(key.trim());
+        StringBuilder token = new StringBuilder();
+        for (byte b : plain.toString().getBytes(StandardCharsets.UTF_8))
+            token.append(String.format("%02x", b & 0xff));
+        return token.toString();
+    }//end encodeToken
+
+    /*
+     * Decodes a continuation token of the given listing. The keys are
+     * checked to be numbers since they end up in the query text.
+     */
+    static String[] decodeToken(String tag, String token) {
+        try {
+            byte[] bytes = new byte[token.length() / 2];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) Integer.parseInt(token.substring(2 * i, 2 * i + 2), 16);
+            String[] parts = new String(bytes, StandardCharsets.UTF_8).split(":");
+            if (token.length() % 2 != 0 || !parts[0].equals(tag))
+                throw new IllegalArgumentException();
+            String[] keys = Arrays.copyOfRange(parts, 1, parts.length);
+            for (String key : keys)
+                new java.math.BigDecimal(key);
+            return keys;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid continuation token for this listing!");
+        }
+    }//end decodeToken
+
+    /**
+     * Fetches one page of a listing.
+     *
+     * @param token the continuation token of the previous page, empty for the first page
+     * @param rows receives the rows of the page
+     * @return the token of the next page, null when this page is the last one
+     */
+    static String fetchPage(DBProject esql, PagedQuery listing, String token, int pageSize, List<List<String>> rows)
+            throws SQLException {
+        String[] after = token == null || token.isEmpty() ? null : decodeToken(listing.tag, token);
+        // one extra row tells whether a next page exists
+        List<List<String>> result = esql.executeQueryAndReturnResult(listing.query(after, pageSize + 1));
+        boolean more = result.size() > pageSize;
+        if (more)
+            result = result.subList(0, pageSize);
+        rows.addAll(result);
+        return more ? encodeToken(listing.tag, listing.keys(result.get(result.size() - 1))) : null;
+    }//end fetchPage
+
+    public static void pagedListings(DBProject esql) {
+        // Page through the listing and top k operations using keyset pagination
+        try {
+            System.out.println("PAGED LISTINGS");
+            System.out.println("--------------");
+            System.out.println("1. List the repairs made by maintenance company");
+            System.out.println("2. Get hotel rooms available for a week");
+            System.out.println("3. Get rooms with highest price for a date range");
+            System.out.println("4. Get highest booking prices for a customer");
+            System.out.println("5. < BACK");
+            PagedQuery listing;
+            switch (readChoice()) {
+                case 1:
+                    listing = repairsMadePages(readRequired("company name"));
+                    break;
+                case 2:
+                    listing = roomsAvailableForAWeekPages(readRequired("hotelID"), readRequired("date(DD/MM/YYYY)"));
+                    break;
+                case 3:
+                    listing = highestRoomPricePages(readRequired("date from(DD/MM/YYYY)"),
+                            readRequired("to(DD/MM/YYYY)"));
+                    break;
+                case 4:
+                    String customerID = chooseCustomer(esql, readRequired("fName"), readRequired("lName"));
+                    if (customerID == null)
+                        return;
+                    listing = highestPriceBookingsPages(customerID);
+                    break;
+                case 5:
+                    return;
+                default:
+                    System.out.println("Unrecognized choice!");
+                    return;
+            }//end switch
+
+            showPages(esql, listing);
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+    }//end pagedListings
+
+    /*
+     * Prompts for the page size and an optional continuation token, then
+     * shows the pages of a listing for as long as the user asks for more
+     */
+    static void showPages(DBProject esql, PagedQuery listing) throws IOException, SQLException {
+        int pageSize = Integer.parseInt(readRequired("page size").trim());
+        if (pageSize < 1)
+            throw new IllegalArgumentException("Page size must be at least 1!");
+        String token = readOptional("continuation token(empty for first page)").trim();
+        while (true) {
+            List<List<String>> rows = new ArrayList<List<String>>();
+            token = fetchPage(esql, listing, token, pageSize, rows);
+            System.out.println(listing.header);
+            for (List<String> row : rows) {
+                for (String value : row)
+                    System.out.print(value + "\t");
+                System.out.println();
+            }
+            System.out.println("page row(s): " + rows.size());
+            if (token == null) {
+                System.out.println("last page\n");
+                break;
+            }
+            System.out.println("next page token: " + token);
+            System.out.print("\tShow next page?(y/n):");
+            if (!in.readLine().trim().equalsIgnoreCase("y")) {
+                System.out.println();
+                break;
+            }
+        }//end while
+    }//end showPages
+
+    static PagedQuery repairsMadePages(final String company) {
+        // paged listRepairsMade, seeks on rID through repair_company_index
+        return new PagedQuery("repairs", "rid\thotelid\troomno\trepairtype\t") {
+            String query(String[] after, int limit) {
+                return "select r.rid,r.hotelid,r.roomno,r.repairtype from " + archiveUnion("repair", "r", null)
+                        + ",maintenancecompany m where m.name='"
+                        + company + "' and r.mcompany=m.cmpid" + (after == null ? "" : " and r.rid>" + after[0])
+                        + " order by r.rid limit " + limit + ";";
+            }
+
+            String[] keys(List<String> row) {
+                return new String[]{row.get(0)};
+            }
+        };
+    }//end repairsMadePages
+
+    static PagedQuery roomsAvailableForAWeekPages(final String hotelID, final String date) {
+        // paged listHotelRoomBookingsForAWeek, seeks on roomNo through room_index
+        return new PagedQuery("rooms", "roomno\t") {
+            String query(String[] after, int limit) {
+                return "select roomno from room where hotelid='" + hotelID + "'"
+                        + (after == null ? "" : " and roomno>" + after[0])
+                        + " and roomno not in(select roomno from " + archiveUnion("booking", "booking", date)
+                        + " where booking.hotelid='" + hotelID
+                        + "' and bookingdate>='" + date + "' and bookingdate<date'" + date + "'+integer'7')"
+                        + " order by roomno limit " + limit + ";";
+            }
+
+            String[] keys(List<String> row) {
+                return new String[]{row.get(0)};
+            }
+        };
+    }//end roomsAvailableForAWeekPages
+
+    static PagedQuery highestRoomPricePages(final String from, final String to) {
+        // paged topKHighestRoomPriceForADateRange, seeks on (price, bID) through booking_price_index
+        return new PagedQuery("price", "bid\thotelid\troomno\tbookingdate\tprice\t") {
+            String query(String[] after, int limit) {
+                return "select bid,hotelid,roomno,bookingdate,price from " + archiveUnion("booking", "booking", from)
+                        + " where bookingdate>='" + from
+                        + "' and bookingdate<='" + to + "'"
+                        + (after == null ? "" : " and (price,bid)<(" + after[0] + "," + after[1] + ")")
+                        + " order by price desc,bid desc limit " + limit + ";";
+            }
+
+            String[] keys(List<String> row) {
+                return new String[]{row.get(4), row.get(0)};
+            }
+        };
+    }//end highestRoomPricePages
+
+    static PagedQuery highestPriceBookingsPages(final String customerID) {
+        // paged topKHighestPriceBookingsForACustomer, seeks on (customer, price, bID) through booking_customer_index
+        return new PagedQuery("customer", "bid\thotelid\troomno\tbookingdate\tprice\t") {
+            String query(String[] after, int limit) {
+                return "select b.bid,b.hotelid,b.roomno,b.bookingdate,b.price from " + archiveUnion("booking", "b", null)
+                        + " where b.customer=" + customerID
+                        + (after == null ? "" : " and (b.price,b.bid)<(" + after[0] + "," + after[1] + ")")
+                        + " order by b.price desc,b.bid desc limit " + limit + ";";
+            }
+
+            String[] keys(List<String> row) {
+                return new String[]{row.get(4), row.get(0)};
+            }
+        };
+    }//end highestPriceBookingsPages
+
+    /*
+     * ----------------------------------------------------------------------
+     * CSV export
+     * ----------------------------------------------------------------------
+     * Tables and reports are exported with COPY ... TO STDOUT so the server
+     * formats the CSV and the bytes are copied straight to the file without
+     * building a JDBC row object per record. The bundled JDBC driver has no
+     * COPY support, so each export runs through its own psql session.
+     */
+
+    // psql executable used for COPY, override with -Dpsql=/path/to/psql
+    static final String PSQL = System.getProperty("psql", "psql");
+
+    // tables that can be exported, with the date column used to split them by range
+    static final String[][] EXPORT_TABLES = {
+            {"hotel", null}, {"staff", null}, {"room", null}, {"customer", null},
+            {"maintenancecompany", null}, {"booking", "bookingdate"}, {"repair", "repairdate"},
+            {"request", "requestdate"}, {"assigned", null}, {"booking_archive", "bookingdate"},
+            {"repair_archive", "repairdate"}, {"request_archive", "requestdate"}};
+
+    /**
+     * Streams the result of one query into one file through COPY TO STDOUT.
+     * call() returns the number of CSV bytes produced (before compression).
+     */
+    static class CopyExport implements Callable<Long> {
+        final DBProject esql;
+        final String query;
+        final File file;
+        final boolean gzip;
+
+        // guarded by this: the running psql and whether the export was cancelled
+        private Process psql;
+        private boolean cancelled;
+
+        CopyExport(DBProject esql, String query, File file, boolean gzip) {
+            this.esql = esql;
+            this.query = query;
+            this.file = file;
+            this.gzip = gzip;
+        }
+
+        public Long call() throws IOException, InterruptedException {
+            // the file is opened first so a bad path never leaves a COPY running
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+            Process psql;
+            boolean done = false;
+            long bytes = 0;
+            try {
+                if (gzip)
+                    out = new GZIPOutputStream(out, 1 << 16);
+                // -w: fail instead of waiting for a password nobody can type
+                ProcessBuilder pb = new ProcessBuilder(PSQL, "-X", "-q", "-w", "-v", "ON_ERROR_STOP=1",
+                        "-h", "localhost", "-p", esql._dbport, "-U", esql._user, "-d", esql._dbname,
+                        "-c", "COPY (" + query + ") TO STDOUT WITH CSV HEADER");
+                pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+                synchronized (this) {
+                    if (cancelled)
+                        throw new IOException("Export of " + file + " cancelled");
+                    psql = this.psql = pb.start();
+                }
+                InputStream csv = psql.getInputStream();
+                byte[] buf = new byte[1 << 16];
+                for (int n; (n = csv.read(buf)) > 0; bytes += n)
+                    out.write(buf, 0, n);
+                out.close();
+                if (psql.waitFor() != 0)
+                    throw new IOException("Export of " + file + " failed, psql exited with " + psql.exitValue());
+                done = true;
+            } finally {
+                if (!done) {
+                    cancel();
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // the export failed already.
+                    }//end try
+                    // a partial file must not pass for an export
+                    file.delete();
+                }//end if
+            }//end try
+            return bytes;
+        }//end call
+
+        /**
+         * Stops the export: kills psql, which ends the read loop of call(),
+         * or keeps it from being started.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            if (psql != null)
+                psql.destroy();
+        }//end cancel
+    }//end CopyExport
+
+    /*
+     * Returns the date column of an exportable table, or "" when the table
+     * has none, null when the table is unknown
+     */
+    static String exportDateColumn(String table) {
+        for (String[] t : EXPORT_TABLES)
+            if (t[0].equals(table))
+                return t[1] == null ? "" : t[1];
+        return null;
+    }//end exportDateColumn
+
+    public static void exportCsv(DBProject esql) {
+        // Export whole tables, date range slices of a table or a report into CSV files
+        try {
+            System.out.println("EXPORT");
+            System.out.println("------");
+            System.out.println("1. Whole tables (exported in parallel)");
+            System.out.println("2. One table split by date range (parts exported in parallel)");
+            System.out.println("3. A batch report or a select query");
+            System.out.println("4. < BACK");
+            int choice = readChoice();
+            if (choice < 1 || choice > 3) {
+                if (choice != 4)
+                    System.out.println("Unrecognized choice!");
+                return;
+            }
+
+            List<String> queries = new ArrayList<String>();
+            List<String> names = new ArrayList<String>();
+            if (choice == 1) {
+                for (String table : readRequired("table names(comma separated)").toLowerCase().split(",")) {
+                    table = table.trim();
+                    if (exportDateColumn(table) == null) {
+                        System.out.println("Unknown table " + table + "!");
+                        return;
+                    }
+                    queries.add("select * from " + table);
+                    names.add(table);
+                }
+            } else if (choice == 2) {
+                String table = readRequired("table name(booking/repair/request)").trim().toLowerCase();
+                String column = exportDateColumn(table);
+                if (column == null || column.isEmpty()) {
+                    System.out.println("Table " + table + " cannot be split by date!");
+                    return;
+                }
+                int from = esql.toEpochDay(readRequired("date from(DD/MM/YYYY)"));
+                int to = esql.toEpochDay(readRequired("to(DD/MM/YYYY)")) + 1;
+                int parts = Math.max(1, Math.min(to - from, Integer.parseInt(readRequired("number of parts").trim())));
+                for (int p = 0; p < parts; p++) {
+                    int lo = from + (int) ((long) (to - from) * p / parts);
+                    int hi = from + (int) ((long) (to - from) * (p + 1) / parts);
+                    queries.add("select * from " + table + " where " + column + ">=date'1970-01-01'+" + lo
+                            + " and " + column + "<date'1970-01-01'+" + hi);
+                    names.add(table + ".part" + p);
+                }
+            } else {
+                String input = readRequired("report name or select query").trim();
+                String query = input;
+                boolean isReport = false;
+                for (String[] report : BATCH_REPORTS) {
+                    if (report[0].equalsIgnoreCase(input)) {
+                        query = report[1];
+                        isReport = true;
+                    }
+                }
+                if (query.endsWith(";"))
+                    query = query.substring(0, query.length() - 1);
+                queries.add(query);
+                names.add(isReport ? input.toLowerCase() : "query");
+            }
+
+            String input = readOptional("output directory(empty for export)");
+            File dir = new File(input.isEmpty() ? "export" : input);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                System.out.println("Unable to create " + dir);
+                return;
+            }
+            System.out.print("\tCompress with gzip?(y/n):");
+            boolean gzip = in.readLine().trim().equalsIgnoreCase("y");
+
+            List<File> files = new ArrayList<File>();
+            List<CopyExport> exports = new ArrayList<CopyExport>();
+            for (int i = 0; i < queries.size(); i++) {
+                File file = new File(dir, names.get(i) + (gzip ? ".csv.gz" : ".csv"));
+                files.add(file);
+                exports.add(new CopyExport(esql, queries.get(i), file, gzip));
+            }
+            runExports(exports, files);
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+    }//end exportCsv
+
+    /*
+     * Runs the exports in parallel, one psql session each, and reports the
+     * throughput of every file and of the whole export. The first failure
+     * stops the other exports and removes their partial files.
+     */
+    static void runExports(List<CopyExport> exports, List<File> files) throws InterruptedException, IOException {
+        int threads = Math.min(exports.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        long total = 0;
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        boolean done = false;
+        try {
+            // taken in completion order, a failure is seen while the exports before it still run
+            CompletionService<Long> completed = new ExecutorCompletionService<Long>(executor);
+            for (CopyExport export : exports)
+                results.add(completed.submit(export));
+            for (int n = 0; n < results.size(); n++) {
+                Future<Long> result = completed.take();
+                int i = results.indexOf(result);
+                long bytes;
+                try {
+                    bytes = result.get();
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause().getMessage());
+                }
+                total += bytes;
+                System.out.println(files.get(i) + ": " + String.format("%.2f", bytes / 1e6) + " MB of CSV, "
+                        + String.format("%.2f", files.get(i).length() / 1e6) + " MB on disk");
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                // psql does not notice an interrupt, each running export is stopped through its process
+                for (int i = 0; i < results.size(); i++) {
+                    results.get(i).cancel(true);
+                    exports.get(i).cancel();
+                }
+            }
+            executor.shutdownNow();
+            // the stopped exports remove their partial files before the failure is reported
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }//end try
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("Exported " + String.format("%.2f", total / 1e6) + " MB in "
+                + String.format("%.2f", seconds) + " s (" + String.format("%.2f", total / 1e6 / seconds) + " MB/s)\n");
+    }//end runExports
+
+    /*
+     * ----------------------------------------------------------------------
+     * Server mode
+     * ----------------------------------------------------------------------
+     * Started with a fourth command line argument, the program serves the
+     * 16 operations to many clients over a line protocol on a localhost
+     * socket instead of showing the menu:
+     *
+     *   request:  <operation number or name>\t<arg 1>\t<arg 2>...
+     *             (arguments in OPERATION_PARAMS order, an empty field
+     *             skips an optional argument)
+     *   response: the result rows as printed by executeQuery, then
+     *             "OK <row count>" or "ERR <message>"
+     *
+     * HELP lists the operations, METRICS prints the admission control,
+     * journal and startup metrics and QUIT closes the connection. Every
+     * client is served by a handler thread of a shared pool. A request is
+     * admitted by its admission class first and only then borrows one of
+     * SERVER_CONNECTIONS database sessions for the time it runs.
+     */
+
+    // database sessions shared by the clients, override with -Dserver.connections
+    static final int SERVER_CONNECTIONS = Integer.getInteger("server.connections", 8);
+
+    // handler threads, i.e. clients served at once, override with -Dserver.threads
+    static final int SERVER_THREADS = Integer.getInteger("server.threads", 512);
+
+    static class OperationServer {
+        final BlockingQueue<DBProject> sessions = new LinkedBlockingQueue<DBProject>();
+        final ExecutorService handlers = Executors.newFixedThreadPool(SERVER_THREADS);
+        // handlers without a client, a client is only accepted for service when one is free
+        final Semaphore idle = new Semaphore(SERVER_THREADS);
+        final ServerSocket socket;
+
+        OperationServer(DBProject esql, int port) throws SQLException, IOException {
+            sessions.add(esql);
+            for (int i = 1; i < SERVER_CONNECTIONS; i++)
+                sessions.add(new DBProject(esql._dbname, esql._dbport, esql._user, ""));
+            socket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        }//end OperationServer
+
+        void serve() throws IOException {
+            System.out.println("Serving " + OPERATION_NAMES.length + " operations on " + socket.getLocalSocketAddress()
+                    + " with " + SERVER_CONNECTIONS + " database session(s)");
+            while (true) {
+                final Socket client = socket.accept();
+                if (!idle.tryAcquire()) {
+                    // every handler holds a client, answer now rather than leave this one waiting unserved
+                    refuse(client);
+                    continue;
+                }
+                handlers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            handleClient(client);
+                        } finally {
+                            idle.release();
+                        }
+                    }
+                });
+            }//end while
+        }//end serve
+
+        void refuse(Socket client) {
+            try {
+                PrintStream out = new PrintStream(client.getOutputStream(), true, "UTF-8");
+                out.println("ERR Server busy: all " + SERVER_THREADS + " handlers are serving clients, try again later");
+            } catch (IOException e) {
+                // client went away.
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // ignored.
+                }//end try
+            }//end try
+        }//end refuse
+
+        void handleClient(Socket client) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+                PrintStream out = new PrintStream(new BufferedOutputStream(client.getOutputStream()), false, "UTF-8");
+                for (String line; (line = reader.readLine()) != null; ) {
+                    if (line.trim().equalsIgnoreCase("QUIT"))
+                        break;
+                    if (line.trim().equalsIgnoreCase("HELP")) {
+                        printOperations(out);
+                    } else if (line.trim().equalsIgnoreCase("METRICS")) {
+                        out.println("OK " + (printAdmissionMetrics(out) + printJournalMetrics(out) + printStartupMetrics(out)));
+                    } else {
+                        handleRequest(line.split("\t", -1), out);
+                    }
+                    out.flush();
+                }//end for
+            } catch (IOException e) {
+                // client went away.
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // ignored.
+                }//end try
+            }//end try
+        }//end handleClient
+
+        void handleRequest(String[] fields, PrintStream out) {
+            int op = operationNumber(fields[0].trim());
+            if (op < 1) {
+                out.println("ERR Unknown operation " + fields[0].trim());
+                return;
+            }
+            String[] params = OPERATION_PARAMS[op - 1];
+            if (fields.length - 1 > params.length) {
+                out.println("ERR " + OPERATION_NAMES[op - 1] + " takes " + params.length + " argument(s)");
+                return;
+            }
+            String[] args = new String[params.length];
+            for (int i = 0; i < params.length; i++) {
+                args[i] = i + 1 < fields.length ? fields[i + 1] : "";
+                if (args[i].isEmpty() && !params[i].endsWith("?")) {
+                    out.println("ERR " + params[i] + " CANNOT be empty!");
+                    return;
+                }
+            }
+
+            try {
+                int rowCount = executeOperation(sessions, null, op, args, out);
+                out.println("OK " + rowCount);
+            } catch (Exception e) {
+                out.println("ERR " + String.valueOf(e.getMessage()).replace('\n', ' '));
+            }//end try
+        }//end handleRequest
+
+        void shutdown() {
+            handlers.shutdownNow();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignored.
+            }//end try
+            for (DBProject session : sessions)
+                session.cleanup();
+        }//end shutdown
+    }//end OperationServer
+
+    /*
+     * Resolves an operation given by menu number or by name, 0 when unknown
+     */
+    static int operationNumber(String op) {
+        for (int i = 0; i < OPERATION_NAMES.length; i++)
+            if (OPERATION_NAMES[i].equalsIgnoreCase(op) || String.valueOf(i + 1).equals(op))
+                return i + 1;
+        return 0;
+    }//end operationNumber
+
+    static void printOperations(PrintStream out) {
+        for (int i = 0; i < OPERATION_NAMES.length; i++) {
+            out.print((i + 1) + "\t" + OPERATION_NAMES[i]);
+            for (String param : OPERATION_PARAMS[i])
+                out.print("\t" + param);
+            out.println();
+        }
+        out.println("OK " + OPERATION_NAMES.length);
+    }//end printOperations
+
+    /*
+     * ----------------------------------------------------------------------
+     * Admission control
+     * ----------------------------------------------------------------------
+     * Operations are classified as interactive writes, point lookups or
+     * analytic reports. Each class runs at most `limit` operations at once;
+     * up to `queue` more wait for a slot (at most `wait` ms) and the rest are
+     * rejected right away, so a burst of heavy reports cannot starve the
+     * bookings. A statement running longer than the class timeout is
+     * cancelled with pg_cancel_backend(). Settings can be overridden with
+     * -Dadmission.<class>.limit/queue/wait/timeout.
+     */
+
+    static class AdmissionClass {
+        final String name;
+        final int limit, queue, timeout;
+        final long wait;
+        final Semaphore slots;
+
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicLong admitted = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong cancelled = new AtomicLong();
+
+        AdmissionClass(String name, int limit, int queue, long wait, int timeout) {
+            this.name = name;
+            this.limit = Integer.getInteger("admission." + name + ".limit", limit);
+            this.queue = Integer.getInteger("admission." + name + ".queue", queue);
+            this.wait = Long.getLong("admission." + name + ".wait", wait);
+            this.timeout = Integer.getInteger("admission." + name + ".timeout", timeout);
+            this.slots = new Semaphore(this.limit, true);
+        }//end AdmissionClass
+
+        /**
+         * Takes a slot of the class, waiting in its queue when all slots are
+         * busy.
+         *
+         * @throws java.sql.SQLException when the queue is full or the wait expired
+         */
+        void enter() throws SQLException {
+            if (!slots.tryAcquire()) {
+                if (queued.incrementAndGet() > queue) {
+                    queued.decrementAndGet();
+                    rejected.incrementAndGet();
+                    throw new SQLException("Server busy: too many " + name + " operations queued, try again later");
+                }
+                try {
+                    if (!slots.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+                        rejected.incrementAndGet();
+                        throw new SQLException("Server busy: no " + name + " slot freed within " + wait + " ms");
+                    }
+                } catch (InterruptedException e) {
+                    rejected.incrementAndGet();
+                    throw new SQLException("Interrupted while queued");
+                } finally {
+                    queued.decrementAndGet();
+                }//end try
+            }//end if
+            admitted.incrementAndGet();
+        }//end enter
+
+        /**
+         * Borrows one of the pooled sessions for an admitted operation, waiting
+         * at most `wait` ms.
+         *
+         * @throws java.sql.SQLException when no session was freed in time
+         */
+        DBProject borrow(BlockingQueue<DBProject> sessions) throws SQLException {
+            try {
+                DBProject session = sessions.poll(wait, TimeUnit.MILLISECONDS);
+                if (session != null)
+                    return session;
+            } catch (InterruptedException e) {
+                rejected.incrementAndGet();
+                throw new SQLException("Interrupted while waiting for a database session");
+            }//end try
+            rejected.incrementAndGet();
+            throw new SQLException("Server busy: no database session freed within " + wait + " ms");
+        }//end borrow
+
+        /**
+         * Arms the cancellation of the session's running statement once the
+         * class timeout elapses.
+         *
+         * @return the armed cancellation, null when the class has no timeout
+         */
+        Watch watch(DBProject esql) throws SQLException {
+            if (timeout <= 0)
+                return null;
+            Watch watch = new Watch(this, esql, esql.backendPid());
+            watch.timer = watchdog.schedule(watch, timeout, TimeUnit.SECONDS);
+            return watch;
+        }//end watch
+
+        /**
+         * Gives the slot back.
+         */
+        void exit() {
+            slots.release();
+        }//end exit
+    }//end AdmissionClass
+
+    /**
+     * The armed cancellation of one operation. Firing and disarming hold the
+     * same lock, so once disarm() returns no cancellation is sent for the
+     * operation any more.
+     */
+    static class Watch implements Runnable {
+        final AdmissionClass admission;
+        final DBProject esql;
+        final int pid;
+        ScheduledFuture<?> timer;
+        private boolean running = true;
+        private boolean fired;
+
+        Watch(AdmissionClass admission, DBProject esql, int pid) {
+            this.admission = admission;
+            this.esql = esql;
+            this.pid = pid;
+        }//end Watch
+
+        public synchronized void run() {
+            if (!running)
+                return;
+            fired = true;
+            admission.cancelled.incrementAndGet();
+            try {
+                cancelSession(esql).executeQueryAndReturnResult("select pg_cancel_backend(" + pid + ");");
+            } catch (SQLException e) {
+                dropCancelSession();
+                System.err.println("Unable to cancel backend " + pid + ": " + e.getMessage());
+            }//end try
+        }//end run
+
+        synchronized boolean fired() {
+            return fired;
+        }//end fired
+
+        void disarm() {
+            synchronized (this) {
+                running = false;
+            }
+            timer.cancel(false);
+        }//end disarm
+    }//end Watch
+
+    static final AdmissionClass INTERACTIVE_WRITES = new AdmissionClass("write", 16, 256, 5000, 10);
+    static final AdmissionClass POINT_LOOKUPS = new AdmissionClass("lookup", 8, 128, 5000, 15);
+    static final AdmissionClass ANALYTIC_REPORTS = new AdmissionClass("report", 2, 8, 30000, 120);
+    static final AdmissionClass[] ADMISSION_CLASSES = {INTERACTIVE_WRITES, POINT_LOOKUPS, ANALYTIC_REPORTS};
+
+    // timer running the statement cancellations
+    static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "admission-watchdog");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // separate session issuing pg_cancel_backend, opened on first use
+    private static DBProject cancelSession = null;
+
+    static synchronized DBProject cancelSession(DBProject esql) throws SQLException {
+        if (cancelSession == null)
+            cancelSession = openBackgroundSession(esql);
+        return cancelSession;
+    }//end cancelSession
+
+    /*
+     * Closes a cancel session that failed, the next cancellation opens a new one
+     */
+    static synchronized void dropCancelSession() {
+        if (cancelSession != null)
+            cancelSession.cleanup();
+        cancelSession = null;
+    }//end dropCancelSession
+
+    /*
+     * The admission class of a menu operation: the inserts are interactive
+     * writes, the lookups bounded by a hotel, room or customer are point
+     * lookups, listHotelRoomBookingsForAWeek included as its week is fixed,
+     * and the scans over a date range or all repairs are reports
+     */
+    static AdmissionClass admissionClass(int op) {
+        if (op <= LAST_UPDATE_OPERATION)
+            return INTERACTIVE_WRITES;
+        switch (op) {
+            case 8:
+            case 9:
+            case 10:
+            case 12:
+            case 13:
+            case 16:
+                return POINT_LOOKUPS;
+            default:
+                return ANALYTIC_REPORTS;
+        }//end switch
+    }//end admissionClass
+
+    static int printAdmissionMetrics(PrintStream out) {
+        for (AdmissionClass c : ADMISSION_CLASSES) {
+            out.println("admission_" + c.name + "_running\t" + (c.limit - c.slots.availablePermits()));
+            out.println("admission_" + c.name + "_queue_depth\t" + c.queued.get());
+            out.println("admission_" + c.name + "_admitted_total\t" + c.admitted.get());
+            out.println("admission_" + c.name + "_rejected_total\t" + c.rejected.get());
+            out.println("admission_" + c.name + "_cancelled_total\t" + c.cancelled.get());
+        }
+        return ADMISSION_CLASSES.length * 5;
+    }//end printAdmissionMetrics
+
+    /*
+     * ----------------------------------------------------------------------
+     * Archival
+     * ----------------------------------------------------------------------
+     * Booking, Repair and Request rows dated before a horizon are moved into
+     * Booking_archive, Repair_archive and Request_archive, a batch at a time
+     * so that each transaction only holds its locks briefly. ArchiveHorizon
+     * keeps, per table, the date before which rows may be in the archive;
+     * the reports read a table through archiveUnion() which only scans the
+     * archive when the requested range starts before that horizon.
+     */
+
+    // tables with an archive, with their key and date columns, in the order they are archived
+    static final String[][] ARCHIVED_TABLES = {
+            {"request", "reqid", "requestdate"},
+            {"repair", "rid", "repairdate"},
+            {"booking", "bid", "bookingdate"}};
+
+    /*
+     * The rows of an archived table as a FROM item with the given alias, for
+     * a query that only needs rows dated from `from` on (null for all of
+     * them). The archive branch of the union sits behind a one-time filter
+     * on the horizon, so it is not scanned when the range starts after it.
+     */
+    static String archiveUnion(String table, String alias, String from) {
+        return "(select * from " + table + " union all select * from " + table + "_archive where date'"
+                + (from == null ? "-infinity" : from) + "'<(select horizon from archivehorizon where tablename='"
+                + table + "')) " + alias;
+    }//end archiveUnion
+
+    public static void archiveHistory(DBProject esql) {
+        // Move the bookings, repairs and requests dated before the horizon into the archive tables
+        try {
+            String horizon = readRequired("horizon date(DD/MM/YYYY), older rows are archived");
+            String input = readOptional("batch size(empty for 1000)");
+            int batch = input.isEmpty() ? 1000 : Integer.parseInt(input.trim());
+
+            long start = System.currentTimeMillis();
+            for (String[] t : ARCHIVED_TABLES) {
+                // the horizon moves first so reports already look in the archive for the range being moved,
+                // each row moves in a single statement so the union never sees it twice or misses it
+                esql.executeUpdate("update archivehorizon set horizon=greatest(horizon,date'" + horizon
+                        + "') where tablename='" + t[0] + "';");
+
+                // batches walk the (date, key) index in order, each one seeks past the last row moved
+                String after = "";
+                long moved = 0;
+                while (true) {
+                    // the key 0 rows are sentinels and stay live whatever their date: Repair 0 is where
+                    // Request.repairID points by default and after ON DELETE SET DEFAULT
+                    String candidates = "select " + t[1] + " from " + t[0] + " where " + t[2] + "<date'" + horizon + "'"
+                            + " and " + t[1] + "<>0" + after;
+                    if (t[0].equals("repair")) {
+                        // a repair still referenced by a live request stays, its removal would reset the request
+                        candidates += " and not exists(select 1 from request q where q.repairid=" + t[0] + "." + t[1] + ")";
+                    }
+                    String move = "with moved as (delete from " + t[0] + " where " + t[1] + " in(" + candidates
+                            + " order by " + t[2] + "," + t[1] + " limit " + batch + ") returning *), archived as "
+                            + "(insert into " + t[0] + "_archive select * from moved) select (select count(*) from moved),"
+                            + t[2] + "," + t[1] + " from moved order by " + t[2] + " desc," + t[1] + " desc limit 1;";
+                    List<List<String>> last = esql.executeQueryAndReturnResult(move);
+                    if (last.isEmpty())
+                        break;
+                    moved += Long.parseLong(last.get(0).get(0));
+                    after = " and (" + t[2] + "," + t[1] + ")>(date'" + last.get(0).get(1) + "'," + last.get(0).get(2) + ")";
+                    System.out.print("\r" + t[0] + ": " + moved + " row(s) archived");
+                }//end while
+                System.out.println("\r" + t[0] + ": " + moved + " row(s) archived");
+            }//end for
+            System.out.println("Archival done in " + (System.currentTimeMillis() - start) / 1000.0 + " s\n");
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+    }//end archiveHistory
+
+    /*
+     * ----------------------------------------------------------------------
+     * Write-ahead journal
+     * ----------------------------------------------------------------------
+     * With -Djournal=<file>, addCustomer, bookRoom and repairRequest are not
+     * sent to the database directly: their statement is appended to a local
+     * memory-mapped journal and acknowledged as soon as it is on disk. A
+     * background applier replays the entries in order, a batch per
+     * transaction, and records the last applied sequence number in
+     * JournalApplied within the same transaction, so an entry is applied
+     * exactly once even across crashes. On startup the entries past that
+     * watermark are replayed.
+     *
+     * The file starts with a 16 byte header (magic, version, sequence number
+     * of the first entry). Each entry is its payload length, the CRC32 of
+     * its sequence number and payload, the sequence number and the statement
+     * in UTF-8. A torn or stale entry fails the CRC or sequence check and
+     * marks the end of the journal. Once every entry is applied and the file
+     * is full, writing starts over at the beginning.
+     *
+     * A write waits at most journal.wait seconds for room in a full journal
+     * and then fails. If the applier stops for good (another process moved
+     * the watermark), journaling is turned off: the writes not applied yet
+     * fail, and the later ones go to the database directly.
+     */
+
+    // journal file of the write-ahead mode, off unless -Djournal=<file> is given
+    static final String JOURNAL_FILE = System.getProperty("journal");
+
+    // size of a new journal file in MB, override with -Djournal.size
+    static final int JOURNAL_MB = Integer.getInteger("journal.size", 64);
+
+    // seconds a write waits for room in a full journal, override with -Djournal.wait
+    static final int JOURNAL_WAIT = Integer.getInteger("journal.wait", 10);
+
+    // entries applied per transaction
+    static final int JOURNAL_BATCH = 100;
+
+    static Journal journal = null;
+
+    /*
+     * The front desk writes that go through the journal when it is enabled
+     */
+    static boolean isJournaled(int op) {
+        return op == 1 || op == 5 || op == 7;
+    }//end isJournaled
+
+    /*
+     * Tells whether writes go through the journal: it is enabled and its
+     * applier is still running
+     */
+    static boolean journaling() {
+        return journal != null && !journal.stopped;
+    }//end journaling
+
+    static class Journal implements Runnable {
+        static final int MAGIC = 0x44424a4c;
+        static final int VERSION = 1;
+        static final int HEADER_BYTES = 16;
+        static final int ENTRY_HEADER_BYTES = 16;
+
+        final File file;
+        final String name;
+        final MappedByteBuffer buf;
+        final DBProject login;
+
+        // guarded by this: the next sequence number and where it goes, the
+        // last applied sequence number and where the next one to apply starts
+        long nextSeq;
+        int writePos;
+        long appliedSeq;
+        int applyPos;
+
+        // last sequence number known to be on disk, updated under forceLock
+        final Object forceLock = new Object();
+        volatile long forcedSeq;
+
+        final AtomicLong rejected = new AtomicLong();
+
+        // set under this once the applier is gone, nothing appended is applied any more
+        volatile boolean stopped;
+
+        Journal(File file, DBProject esql) throws IOException, SQLException {
+            this.file = file;
+            this.name = file.getName();
+            this.login = esql;
+
+            esql.executeUpdate("insert into journalapplied select '" + name + "',0 where not exists"
+                    + "(select 1 from journalapplied where journal='" + name + "');");
+            appliedSeq = Long.parseLong(esql.executeQueryAndReturnResult(
+                    "select seq from journalapplied where journal='" + name + "';").get(0).get(0));
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            boolean fresh = raf.length() == 0;
+            try {
+                if (fresh)
+                    raf.setLength((long) JOURNAL_MB << 20);
+                buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            if (fresh)
+                writeHeader(appliedSeq + 1);
+            else if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+                throw new IOException("Not a journal: " + file);
+
+            // recovery: the journal ends at the first entry that is not valid
+            long baseSeq = buf.getLong(8);
+            nextSeq = baseSeq;
+            writePos = HEADER_BYTES;
+            for (int length; (length = validEntry(writePos, nextSeq)) >= 0; nextSeq++)
+                writePos += ENTRY_HEADER_BYTES + length;
+            forcedSeq = nextSeq - 1;
+
+            applyPos = HEADER_BYTES;
+            for (long seq = baseSeq; seq <= appliedSeq && applyPos < writePos; seq++)
+                applyPos += ENTRY_HEADER_BYTES + buf.getInt(applyPos);
+            appliedSeq = Math.max(appliedSeq, baseSeq - 1);
+
+            Thread applier = new Thread(this, "journal-applier");
+            applier.setDaemon(true);
+            applier.start();
+        }//end Journal
+
+        private void writeHeader(long baseSeq) {
+            buf.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, baseSeq).putInt(HEADER_BYTES, 0);
+            buf.force();
+        }//end writeHeader
+
+        static int entryCrc(long seq, byte[] payload) {
+            CRC32 crc = new CRC32();
+            crc.update(ByteBuffer.allocate(8).putLong(seq).array());
+            crc.update(payload);
+            return (int) crc.getValue();
+        }//end entryCrc
+
+        /*
+         * Returns the payload length of the entry at pos if it is a complete
+         * entry with the expected sequence number, -1 otherwise
+         */
+        private int validEntry(int pos, long seq) {
+            if (pos + ENTRY_HEADER_BYTES > buf.capacity())
+                return -1;
+            int length = buf.getInt(pos);
+            if (length <= 0 || length > buf.capacity() - pos - ENTRY_HEADER_BYTES || buf.getLong(pos + 8) != seq)
+                return -1;
+            return buf.getInt(pos + 4) == entryCrc(seq, payload(pos)) ? length : -1;
+        }//end validEntry
+
+        private byte[] payload(int pos) {
+            byte[] payload = new byte[buf.getInt(pos)];
+            ByteBuffer b = buf.duplicate();
+            b.position(pos + ENTRY_HEADER_BYTES);
+            b.get(payload);
+            return payload;
+        }//end payload
+
+        /**
+         * Appends a statement and returns once it is on disk.
+         *
+         * @return the sequence number of the entry
+         * @throws java.io.IOException when the entry cannot be journaled, the
+         *         journal stayed full for JOURNAL_WAIT seconds or the applier
+         *         stopped before applying it
+         */
+        long append(String sql) throws IOException {
+            byte[] payload = sql.getBytes(StandardCharsets.UTF_8);
+            int size = ENTRY_HEADER_BYTES + payload.length;
+            if (HEADER_BYTES + size > buf.capacity())
+                throw new IOException("Statement larger than the journal");
+            long seq;
+            synchronized (this) {
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(JOURNAL_WAIT);
+                while (writePos + size > buf.capacity()) {
+                    if (stopped)
+                        break;
+                    if (applyPos == writePos) {
+                        // everything is applied, start over at the beginning
+                        writeHeader(nextSeq);
+                        writePos = applyPos = HEADER_BYTES;
+                        break;
+                    }
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0)
+                        throw new IOException("Journal full, " + pending() + " write(s) not applied yet");
+                    try {
+                        wait(TimeUnit.NANOSECONDS.toMillis(left) + 1);
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted while the journal is full");
+                    }
+                }//end while
+                if (stopped)
+                    throw new IOException("Journal applier stopped");
+                seq = nextSeq++;
+                ByteBuffer b = buf.duplicate();
+                b.position(writePos + 8);
+                b.putLong(seq).put(payload);
+                buf.putInt(writePos + 4, entryCrc(seq, payload));
+                buf.putInt(writePos, payload.length);
+                writePos += size;
+            }
+            force(seq);
+            synchronized (this) {
+                // the applier stopped while the entry was written, it will not be applied
+                if (stopped && seq > appliedSeq)
+                    throw new IOException("Journal applier stopped before applying the write");
+            }
+            return seq;
+        }//end append
+
+        /*
+         * Makes sure the entry is on disk. Concurrent writers share one
+         * flush: whoever flushes covers every entry appended so far.
+         */
+        private void force(long seq) {
+            synchronized (forceLock) {
+                if (forcedSeq >= seq)
+                    return;
+                long upTo;
+                synchronized (this) {
+                    upTo = nextSeq - 1;
+                }
+                buf.force();
+                forcedSeq = upTo;
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+        }//end force
+
+        synchronized long pending() {
+            return nextSeq - 1 - appliedSeq;
+        }//end pending
+
+        /*
+         * The applier: replays the entries on disk that are not applied yet.
+         * When it returns, journaling is off and pending writes fail.
+         */
+        public void run() {
+            try {
+                apply();
+            } finally {
+                synchronized (this) {
+                    stopped = true;
+                    notifyAll();
+                }
+                if (pending() > 0)
+                    System.err.println("Journal " + name + ": " + pending() + " acknowledged write(s) left unapplied"
+                            + " in " + file + ", writes now go to the database directly");
+            }//end try
+        }//end run
+
+        private void apply() {
+            DBProject session = null;
+            long isolateUpTo = 0;
+            long backoff = 500;
+            while (true) {
+                List<String> batch = new ArrayList<String>();
+                long firstSeq;
+                int endPos;
+                synchronized (this) {
+                    while (appliedSeq >= forcedSeq) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    firstSeq = appliedSeq + 1;
+                    endPos = applyPos;
+                    // entries of a batch that failed are retried one by one to find the bad one
+                    int limit = firstSeq <= isolateUpTo ? 1 : JOURNAL_BATCH;
+                    for (long seq = firstSeq; seq <= forcedSeq && batch.size() < limit; seq++) {
+                        batch.add(new String(payload(endPos), StandardCharsets.UTF_8));
+                        endPos += ENTRY_HEADER_BYTES + buf.getInt(endPos);
+                    }
+                }
+                long lastSeq = firstSeq + batch.size() - 1;
+
+                try {
+                    if (session == null)
+                        session = openBackgroundSession(login);
+                    session._connection.setAutoCommit(false);
+                    if (!advanceWatermark(session, firstSeq, lastSeq)) {
+                        session._connection.rollback();
+                        System.err.println("Journal " + name + " is applied by another process, applier stopped");
+                        return;
+                    }
+                    for (String sql : batch)
+                        session.executeUpdate(sql);
+                    session._connection.commit();
+                    session._connection.setAutoCommit(true);
+                    backoff = 500;
+                } catch (SQLException e) {
+                    if (!reachable(session)) {
+                        // the database is away: keep the entries and try again later
+                        if (session != null)
+                            session.cleanup();
+                        session = null;
+                        sleep(backoff);
+                        backoff = Math.min(backoff * 2, 30000);
+                        continue;
+                    }
+                    if (batch.size() > 1) {
+                        isolateUpTo = lastSeq;
+                        continue;
+                    }
+                    // a statement the database refuses: set it aside so the ones after it can go on
+                    if (!reject(session, firstSeq, batch.get(0), e.getMessage()))
+                        continue;
+                }//end try
+
+                synchronized (this) {
+                    appliedSeq = lastSeq;
+                    applyPos = endPos;
+                    notifyAll();
+                }
+            }//end while
+        }//end apply
+
+        /*
+         * Moves the watermark from firstSeq - 1 to lastSeq. The row stays
+         * locked until the transaction ends, and the update fails if the
+         * watermark was moved by someone else
+         */
+        private boolean advanceWatermark(DBProject session, long firstSeq, long lastSeq) throws SQLException {
+            return session.executeUpdate("update journalapplied set seq=" + lastSeq + " where journal='" + name
+                    + "' and seq=" + (firstSeq - 1) + ";") == 1;
+        }//end advanceWatermark
+
+        /*
+         * Rolls back the failed batch and tells whether the database still answers
+         */
+        private static boolean reachable(DBProject session) {
+            if (session == null)
+                return false;
+            try {
+                session._connection.rollback();
+                session._connection.setAutoCommit(true);
+                session.executeQueryAndReturnResult("select 1;");
+                return true;
+            } catch (SQLException e) {
+                return false;
+            }//end try
+        }//end reachable
+
+        /*
+         * Logs a refused entry to <journal>.rejected and moves the watermark past it
+         */
+        private boolean reject(DBProject session, long seq, String sql, String error) {
+            try {
+                Writer log = new FileWriter(file.getPath() + ".rejected", true);
+                try {
+                    log.write(seq + "\t" + sql.replace('\n', ' ') + "\t" + String.valueOf(error).replace('\n', ' ') + "\n");
+                } finally {
+                    log.close();
+                }
+                if (!advanceWatermark(session, seq, seq))
+                    return false;
+                rejected.incrementAndGet();
+                System.err.println("Journal entry " + seq + " rejected: " + error);
+                return true;
+            } catch (IOException | SQLException e) {
+                sleep(500);
+                return false;
+            }//end try
+        }//end reject
+
+        private static void sleep(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }//end try
+        }//end sleep
+    }//end Journal
+
+    static int printJournalMetrics(PrintStream out) {
+        if (journal == null)
+            return 0;
+        synchronized (journal) {
+            out.println("journal_appended_seq\t" + (journal.nextSeq - 1));
+            out.println("journal_applied_seq\t" + journal.appliedSeq);
+        }
+        out.println("journal_pending\t" + journal.pending());
+        out.println("journal_rejected_total\t" + journal.rejected.get());
+        return 4;
+    }//end printJournalMetrics
+
+    /*
+     * ----------------------------------------------------------------------
+     * House cleaning auto-assignment
+     * ----------------------------------------------------------------------
+     * The batch form of assignHouseCleaningToRoom: the rooms and the
+     * HouseCleaning staff of every hotel are loaded with one query each,
+     * every hotel's rooms are spread over its own staff in parallel, always
+     * giving the next room to the least loaded staff member below the
+     * capacity, and the Assigned rows are written with multi-row inserts.
+     * Loading and writing happen in a single transaction that locks Assigned
+     * against other writers first, so the rooms and loads cannot go stale.
+     */
+
+    // rows per multi-row INSERT of the bulk writes
+    static final int INSERT_BATCH = 1000;
+
+    /**
+     * Spreads the rooms of one hotel over its staff. Each result entry is
+     * {staffID, hotelID, roomNo}.
+     */
+    static class HotelAssignment extends RecursiveTask<List<long[]>> {
+        final long hotelID;
+        final List<Long> rooms;
+        final List<Long> staff;
+        final Map<Long, Integer> load;
+        final int capacity;
+
+        HotelAssignment(long hotelID, List<Long> rooms, List<Long> staff, Map<Long, Integer> load, int capacity) {
+            this.hotelID = hotelID;
+            this.rooms = rooms;
+            this.staff = staff;
+            this.load = load;
+            this.capacity = capacity;
+        }
+
+        protected List<long[]> compute() {
+            // {load, staffID}, least loaded first then lowest SSN
+            PriorityQueue<long[]> byLoad = new PriorityQueue<long[]>(Math.max(1, staff.size()),
+                    new java.util.Comparator<long[]>() {
+                        public int compare(long[] a, long[] b) {
+                            return a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]);
+                        }
+                    });
+            for (Long ssn : staff) {
+                Integer assigned = load.get(ssn);
+                if (assigned == null || assigned < capacity)
+                    byLoad.add(new long[]{assigned == null ? 0 : assigned, ssn});
+            }
+            List<long[]> result = new ArrayList<long[]>();
+            for (Long roomNo : rooms) {
+                long[] next = byLoad.poll();
+                if (next == null)
+                    break;
+                result.add(new long[]{next[1], hotelID, roomNo});
+                if (++next[0] < capacity)
+                    byLoad.add(next);
+            }
+            return result;
+        }//end compute
+    }//end HotelAssignment
+
+    /*
+     * Groups the rows of a two column result, both numbers, by the first column
+     */
+    static Map<Long, List<Long>> groupByFirst(List<List<String>> rows) {
+        Map<Long, List<Long>> groups = new TreeMap<Long, List<Long>>();
+        for (List<String> row : rows) {
+            Long key = Long.valueOf(row.get(0).trim());
+            List<Long> group = groups.get(key);
+            if (group == null)
+                groups.put(key, group = new ArrayList<Long>());
+            group.add(Long.valueOf(row.get(1).trim()));
+        }
+        return groups;
+    }//end groupByFirst
+
+    public static void autoAssignHouseCleaning(DBProject esql) {
+        // Assign the HouseCleaning staff of every hotel to its rooms that have no assignment yet
+        try {
+            int capacity = Integer.parseInt(readRequired("maximum rooms per staff member").trim());
+            String hotel = readOptional("hotelID(empty for all hotels)").trim();
+            // hotel 0 is the sentinel the foreign key defaults point to, its rooms are not real rooms
+            String hotelFilter = hotel.isEmpty() ? " and r.hotelid<>0" : " and r.hotelid=" + Long.parseLong(hotel);
+
+            long start, loaded, computed, written;
+            List<HotelAssignment> tasks = new ArrayList<HotelAssignment>();
+            List<long[]> assignments = new ArrayList<long[]>();
+            int roomCount = 0;
+            esql._connection.setAutoCommit(false);
+            try {
+                // the rooms and the load are read and the rows written under one lock, a concurrent run or
+                // assignHouseCleaningToRoom would otherwise assign the same rooms or overload the same staff
+                esql.executeUpdate("lock table assigned in share row exclusive mode;");
+                start = System.currentTimeMillis();
+                Map<Long, List<Long>> rooms = groupByFirst(esql.executeQueryAndReturnResult(
+                        "select r.hotelid,r.roomno from room r where not exists(select 1 from assigned a "
+                                + "where a.hotelid=r.hotelid and a.roomno=r.roomno)" + hotelFilter
+                                + " order by r.hotelid,r.roomno;"));
+                Map<Long, List<Long>> staff = groupByFirst(esql.executeQueryAndReturnResult(
+                        "select employerid,ssn from staff where role='HouseCleaning' order by employerid,ssn;"));
+                Map<Long, Integer> load = new HashMap<Long, Integer>();
+                for (List<String> row : esql.executeQueryAndReturnResult(
+                        "select a.staffid,count(*) from assigned a,staff s where a.staffid=s.ssn "
+                                + "and s.role='HouseCleaning' group by a.staffid;"))
+                    load.put(Long.valueOf(row.get(0).trim()), Integer.valueOf(row.get(1).trim()));
+                loaded = System.currentTimeMillis();
+
+                for (Map.Entry<Long, List<Long>> e : rooms.entrySet()) {
+                    List<Long> hotelStaff = staff.get(e.getKey());
+                    roomCount += e.getValue().size();
+                    tasks.add(new HotelAssignment(e.getKey(), e.getValue(),
+                            hotelStaff == null ? Collections.<Long>emptyList() : hotelStaff, load, capacity));
+                }
+                for (HotelAssignment task : tasks)
+                    pool.execute(task);
+                for (HotelAssignment task : tasks)
+                    assignments.addAll(task.join());
+                computed = System.currentTimeMillis();
+
+                writeAssignments(esql, assignments);
+                esql._connection.commit();
+                written = System.currentTimeMillis();
+            } catch (SQLException e) {
+                esql._connection.rollback();
+                throw e;
+            } finally {
+                esql._connection.setAutoCommit(true);
+            }//end try
+
+            System.out.println(tasks.size() + " hotel(s), " + roomCount + " unassigned room(s): " + assignments.size()
+                    + " assigned, " + (roomCount - assignments.size()) + " left without staff or capacity");
+            System.out.println("load " + (loaded - start) + " ms, assign " + (computed - loaded) + " ms, write "
+                    + (written - computed) + " ms\n");
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+    }//end autoAssignHouseCleaning
+
+    /*
+     * Inserts the assignments with multi-row inserts. The caller's
+     * transaction holds the lock on Assigned, so the asgIDs following the
+     * current maximum stay free.
+     */
+    static void writeAssignments(DBProject esql, List<long[]> assignments) throws SQLException {
+        if (assignments.isEmpty())
+            return;
+        long asgID = Long.parseLong(esql.executeQueryAndReturnResult(
+                "select coalesce(max(asgid),0)+1 from assigned;").get(0).get(0).trim());
+        for (int from = 0; from < assignments.size(); from += INSERT_BATCH) {
+            StringBuilder query = new StringBuilder("INSERT INTO Assigned VALUES");
+            for (int i = from; i < Math.min(from + INSERT_BATCH, assignments.size()); i++) {
+                long[] a = assignments.get(i);
+                query.append(i > from ? "," : "").append('(').append(asgID++).append(',').append(a[0])
+                        .append(',').append(a[1]).append(',').append(a[2]).append(')');
+            }
+            esql.executeUpdate(query.append(';').toString());
+        }
+    }//end writeAssignments
+
+    /*
+     * ----------------------------------------------------------------------
+     * Description search
+     * ----------------------------------------------------------------------
+     * Full-text search over Repair.description and Request.description,
+     * archives included. The match goes through the GIN indexes on
+     * to_tsvector('english', coalesce(description,'')), which PostgreSQL
+     * keeps in sync on every insert, so the expression used here must stay
+     * the same as the indexed one. Results are ranked with ts_rank, rounded
+     * to a numeric so the rank can be carried exactly in the continuation
+     * token, and paged on (rank, id).
+     */
+
+    static String descriptionVector(String alias) {
+        return "to_tsvector('english',coalesce(" + alias + ".description,''))";
+    }//end descriptionVector
+
+    static String searchQuery(String terms) {
+        return "plainto_tsquery('english','" + terms.replace("'", "''") + "')";
+    }//end searchQuery
+
+    static PagedQuery repairSearchPages(final String terms, final String hotelID, final String since) {
+        return new PagedQuery("repairsearch", "rid\thotelid\troomno\trepairdate\trank\tdescription\t") {
+            String query(String[] after, int limit) {
+                return "select rid,hotelid,roomno,repairdate,rank,description from (select r.*,round(ts_rank("
+                        + descriptionVector("r") + "," + searchQuery(terms) + ")::numeric,6) rank from "
+                        + archiveUnion("repair", "r", since.isEmpty() ? null : since) + " where "
+                        + descriptionVector("r") + "@@" + searchQuery(terms)
+                        + (hotelID.isEmpty() ? "" : " and r.hotelid=" + hotelID)
+                        + (since.isEmpty() ? "" : " and r.repairdate>=date'" + since + "'") + ") found"
+                        + (after == null ? "" : " where (rank,rid)<(" + after[0] + "," + after[1] + ")")
+                        + " order by rank desc,rid desc limit " + limit + ";";
+            }
+
+            String[] keys(List<String> row) {
+                return new String[]{row.get(4), row.get(0)};
+            }
+        };
+    }//end repairSearchPages
+
+    static PagedQuery requestSearchPages(final String terms, final String hotelID, final String since) {
+        return new PagedQuery("requestsearch", "reqid\thotelid\troomno\trequestdate\trank\tdescription\t") {
+            String query(String[] after, int limit) {
+                return "select reqid,hotelid,roomno,requestdate,rank,description from (select q.reqid,r.hotelid,"
+                        + "r.roomno,q.requestdate,q.description,round(ts_rank(" + descriptionVector("q") + ","
+                        + searchQuery(terms) + ")::numeric,6) rank from "
+                        + archiveUnion("request", "q", since.isEmpty() ? null : since) + ","
+                        + archiveUnion("repair", "r", null) + " where " + descriptionVector("q") + "@@"
+                        + searchQuery(terms) + " and q.repairid=r.rid"
+                        + (hotelID.isEmpty() ? "" : " and r.hotelid=" + hotelID)
+                        + (since.isEmpty() ? "" : " and q.requestdate>=date'" + since + "'") + ") found"
+                        + (after == null ? "" : " where (rank,reqid)<(" + after[0] + "," + after[1] + ")")
+                        + " order by rank desc,reqid desc limit " + limit + ";";
+            }
+
+            String[] keys(List<String> row) {
+                return new String[]{row.get(4), row.get(0)};
+            }
+        };
+    }//end requestSearchPages
+
+    public static void descriptionSearch(DBProject esql) {
+        // Search the repair and request descriptions for words, ranked and paged
+        try {
+            System.out.println("DESCRIPTION SEARCH");
+            System.out.println("------------------");
+            System.out.println("1. Search repairs");
+            System.out.println("2. Search repair requests");
+            System.out.println("3. Benchmark the search");
+            System.out.println("4. < BACK");
+            int choice = readChoice();
+            if (choice == 3) {
+                benchmarkSearch(esql);
+                return;
+            }
+            if (choice != 1 && choice != 2) {
+                if (choice != 4)
+                    System.out.println("Unrecognized choice!");
+                return;
+            }
+
+            String terms = readRequired("search words");
+            String hotelID = readOptional("hotelID(empty for all)").trim();
+            if (!hotelID.isEmpty())
+                hotelID = String.valueOf(Long.parseLong(hotelID));
+            String since = readOptional("since date(DD/MM/YYYY, empty for all)").trim();
+            showPages(esql, choice == 1 ? repairSearchPages(terms, hotelID, since)
+                    : requestSearchPages(terms, hotelID, since));
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+    }//end descriptionSearch
+
+    /*
+     * Times the indexed search against a sequential scan matching the same
+     * words with regular expressions, on the Repair table or on a temporary
+     * table of synthetic repairs
+     */
+    static void benchmarkSearch(DBProject esql) throws IOException, SQLException {
+        String input = readOptional("synthetic rows(empty to use the Repair table)").trim();
+        String table = "repair";
+        if (!input.isEmpty()) {
+            // 5 words out of 1000 per description, so a word is in about 0.5% of the rows
+            long rows = Long.parseLong(input);
+            long start = System.currentTimeMillis();
+            esql.executeUpdate("drop table if exists search_bench;");
+            esql.executeUpdate("create temp table search_bench as select g rid,g%1000 hotelid,g%50 roomno,"
+                    + "date'2000-01-01'+g%7000 repairdate,'w'||(random()*999)::int||' w'||(random()*999)::int||"
+                    + "' w'||(random()*999)::int||' w'||(random()*999)::int||' w'||(random()*999)::int description "
+                    + "from generate_series(1," + rows + ") g;");
+            esql.executeUpdate("create index search_bench_description_index on search_bench using gin "
+                    + "(to_tsvector('english',coalesce(description,'')));");
+            esql.executeUpdate("analyze search_bench;");
+            System.out.println(rows + " synthetic repair(s) loaded and indexed in "
+                    + (System.currentTimeMillis() - start) / 1000.0 + " s");
+            table = "search_bench";
+        }
+        String terms = readRequired("search words");
+        int runs = Integer.parseInt(readRequired("runs").trim());
+
+        String top = " order by rank desc,rid desc limit 20;";
+        String indexed = "select rid,round(ts_rank(" + descriptionVector("r") + "," + searchQuery(terms)
+                + ")::numeric,6) rank from " + table + " r where " + descriptionVector("r") + "@@"
+                + searchQuery(terms) + top;
+        // the baseline asks for the same thing as plainto_tsquery, every word as a whole word, so both
+        // return the same rows up to stemming and stop words; the match counts show what is left
+        String words = "";
+        for (String word : terms.split("[^A-Za-z0-9]+"))
+            if (!word.isEmpty())
+                words += (words.isEmpty() ? "" : " and ") + "r.description~*E'\\\\m" + word + "\\\\M'";
+        if (words.isEmpty())
+            words = "false";
+        String scan = "select rid,1 rank from " + table + " r where " + words + top;
+        System.out.println("matches: full-text " + esql.executeQueryAndReturnResult("select count(*) from " + table
+                + " r where " + descriptionVector("r") + "@@" + searchQuery(terms) + ";").get(0).get(0)
+                + ", word scan " + esql.executeQueryAndReturnResult("select count(*) from " + table + " r where "
+                + words + ";").get(0).get(0));
+        printTimings("full-text (GIN)", timeQuery(esql, indexed, runs));
+        printTimings("word regex scan", timeQuery(esql, scan, runs));
+        System.out.println();
+    }//end benchmarkSearch
+
+    /*
+     * Runs a query the given number of times after one warm-up run and
+     * returns the sorted latencies in ms
+     */
+    static double[] timeQuery(DBProject esql, String query, int runs) throws SQLException {
+        esql.executeQueryAndReturnResult(query);
+        double[] ms = new double[runs];
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            esql.executeQueryAndReturnResult(query);
+            ms[i] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(ms);
+        return ms;
+    }//end timeQuery
+
+    static void printTimings(String label, double[] ms) {
+        double sum = 0;
+        for (double m : ms)
+            sum += m;
+        System.out.println(label + ": mean " + String.format("%.2f", sum / ms.length) + " ms, p50 "
+                + String.format("%.2f", ms[(ms.length - 1) / 2]) + " ms, p95 "
+                + String.format("%.2f", ms[(int) Math.ceil(ms.length * 0.95) - 1]) + " ms over " + ms.length + " run(s)");
+    }//end printTimings
+
+    /*
+     * ----------------------------------------------------------------------
+     * Approximate analytics
+     * ----------------------------------------------------------------------
+     * Bookings and repairs are summarised into small mergeable sketches,
+     * one set per hotel per day: a HyperLogLog of the customers, a
+     * relative-error quantile sketch of the prices and a Misra-Gries
+     * heavy-hitter summary of the maintenance companies. The sketches of a
+     * hotel and date range are merged at query time, so the answers cost a
+     * few kilobytes per day instead of a scan of the tables, and every
+     * answer comes with its error bound. The store is caught up before each
+     * query with the rows inserted since the last catch-up; updates and
+     * deletes of summarised rows are only picked up by a rebuild.
+     *
+     * The keys are typed in by the clerks and say nothing about insertion
+     * order, so Booking and Repair carry insertTx, the transaction that
+     * inserted the row. As for the snapshot, a catch-up reads the rows of
+     * the transactions from the store's watermark up to the xmin of a fresh
+     * snapshot: every transaction below it has finished, so no row can show
+     * up later below the new watermark.
+     *
+     * Each catch-up summarises the new rows into sketches of their own,
+     * written as a new segment file and merged into the store only once the
+     * whole catch-up succeeded, so a failed one leaves nothing half counted.
+     * Loading merges the segments in order. Every SKETCH_SEGMENTS segments
+     * the store is written whole as a base segment and the older ones are
+     * removed. Several processes may share SKETCH_DIR: catch-ups, compactions
+     * and rebuilds hold a lock on SKETCH_DIR/lock, and a catch-up first
+     * reloads the store if another process wrote a segment since.
+     */
+
+    // directory holding the sketch segments, override with -Dsketch.dir
+    static final File SKETCH_DIR = new File(System.getProperty("sketch.dir", "sketches"));
+
+    // segments written before the store is compacted into a base segment
+    static final int SKETCH_SEGMENTS = 64;
+
+    // sketches loaded from SKETCH_DIR, null until first used
+    static SketchStore sketches;
+
+    // held with the file lock of SKETCH_DIR, a JVM cannot lock the same file twice
+    static final Object SKETCH_LOCK = new Object();
+
+    static final String BOOKING_SKETCH_INPUT = "select customer::int4, hotelid::int4, "
+            + "(bookingdate - date '1970-01-01')::int4, (price * 100)::int8 from "
+            + archiveUnion("booking", "booking", null) + " where inserttx>=";
+    static final String REPAIR_SKETCH_INPUT = "select hotelid::int4, mcompany::int4, "
+            + "(repairdate - date '1970-01-01')::int4 from " + archiveUnion("repair", "repair", null) + " where inserttx>=";
+
+    /**
+     * Map from int keys to long counts kept as two sorted arrays, small
+     * enough to hold one per hotel per day.
+     */
+    static class IntCounts implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        int[] keys = new int[4];
+        long[] counts = new long[4];
+        int size;
+
+        void add(int key, long delta) {
+            int pos = Arrays.binarySearch(keys, 0, size, key);
+            if (pos >= 0) {
+                counts[pos] += delta;
+                return;
+            }
+            pos = -pos - 1;
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+            System.arraycopy(counts, pos, counts, pos + 1, size - pos);
+            keys[pos] = key;
+            counts[pos] = delta;
+            ++size;
+        }
+
+        void addAll(IntCounts other) {
+            for (int i = 0; i < other.size; i++)
+                add(other.keys[i], other.counts[i]);
+        }
+
+        /** Drops the keys whose count is not positive. */
+        void compact() {
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (counts[i] > 0) {
+                    keys[n] = keys[i];
+                    counts[n++] = counts[i];
+                }
+            }
+            size = n;
+        }
+    }//end IntCounts
+
+    /**
+     * HyperLogLog distinct counter with 2^14 registers, relative standard
+     * error 1.04 / sqrt(2^14) = 0.81%. A sketch starts sparse, as a sorted
+     * list of (register, rank) pairs, and switches to the dense register
+     * array once that would be smaller.
+     */
+    static class HyperLogLog implements Serializable {
+        private static final long serialVersionUID = 1L;
+        static final int P = 14;
+        static final int M = 1 << P;
+        static final double STANDARD_ERROR = 1.04 / Math.sqrt(M);
+
+        // register << 6 | rank, sorted, while sparse
+        int[] sparse = new int[4];
+        int sparseSize;
+        byte[] registers;
+
+        void add(long value) {
+            // splitmix64 finaliser, the ids are sequential and need spreading
+            long h = value + 0x9E3779B97F4A7C15L;
+            h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+            h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+            h ^= h >>> 31;
+            set((int) (h >>> (64 - P)), Long.numberOfLeadingZeros((h << P) | (1L << (P - 1))) + 1);
+        }
+
+        void set(int register, int rank) {
+            if (registers != null) {
+                if (rank > registers[register])
+                    registers[register] = (byte) rank;
+                return;
+            }
+            int pos = -Arrays.binarySearch(sparse, 0, sparseSize, register << 6) - 1;
+            if (pos < sparseSize && sparse[pos] >>> 6 == register) {
+                if (rank > (sparse[pos] & 63))
+                    sparse[pos] = register << 6 | rank;
+                return;
+            }
+            if (sparseSize == M / 4) {
+                // the pairs now take as much room as the registers
+                registers = new byte[M];
+                for (int i = 0; i < sparseSize; i++)
+                    registers[sparse[i] >>> 6] = (byte) (sparse[i] & 63);
+                sparse = null;
+                registers[register] = (byte) rank;
+                return;
+            }
+            if (sparseSize == sparse.length)
+                sparse = Arrays.copyOf(sparse, sparseSize * 2);
+            System.arraycopy(sparse, pos, sparse, pos + 1, sparseSize - pos);
+            sparse[pos] = register << 6 | rank;
+            ++sparseSize;
+        }
+
+        void merge(HyperLogLog other) {
+            if (other.registers != null) {
+                for (int i = 0; i < M; i++) {
+                    if (other.registers[i] != 0)
+                        set(i, other.registers[i]);
+                }
+            } else {
+                for (int i = 0; i < other.sparseSize; i++)
+                    set(other.sparse[i] >>> 6, other.sparse[i] & 63);
+            }
+        }
+
+        long estimate() {
+            double sum = 0;
+            int zeros = 0;
+            if (registers != null) {
+                for (byte r : registers) {
+                    sum += 1.0 / (1L << r);
+                    if (r == 0)
+                        ++zeros;
+                }
+            } else {
+                zeros = M - sparseSize;
+                sum = zeros;
+                for (int i = 0; i < sparseSize; i++)
+                    sum += 1.0 / (1L << (sparse[i] & 63));
+            }
+            double estimate = 0.7213 / (1 + 1.079 / M) * M * M / sum;
+            if (estimate <= 2.5 * M && zeros > 0) {
+                // linear counting is more accurate for small cardinalities
+                estimate = M * Math.log((double) M / zeros);
+            }
+            return Math.round(estimate);
+        }
+    }//end HyperLogLog
+
+    /**
+     * Quantile sketch with relative accuracy ALPHA: values are counted in
+     * logarithmic buckets whose bounds grow by GAMMA, so any quantile is
+     * returned within ALPHA of its true value. Sketches merge by adding
+     * their bucket counts.
+     */
+    static class QuantileSketch implements Serializable {
+        private static final long serialVersionUID = 1L;
+        static final double ALPHA = 0.01;
+        static final double GAMMA = (1 + ALPHA) / (1 - ALPHA);
+        static final double LOG_GAMMA = Math.log(GAMMA);
+
+        final IntCounts buckets = new IntCounts();
+        long zeros;
+        long count;
+
+        void add(long value) {
+            if (value <= 0)
+                ++zeros;
+            else
+                buckets.add((int) Math.ceil(Math.log(value) / LOG_GAMMA), 1);
+            ++count;
+        }
+
+        void merge(QuantileSketch other) {
+            buckets.addAll(other.buckets);
+            zeros += other.zeros;
+            count += other.count;
+        }
+
+        /** Nearest-rank quantile, q in [0, 1]. */
+        double quantile(double q) {
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            if (rank <= zeros)
+                return 0;
+            long seen = zeros;
+            for (int i = 0; i < buckets.size; i++) {
+                seen += buckets.counts[i];
+                if (seen >= rank)
+                    return 2 * Math.pow(GAMMA, buckets.keys[i]) / (GAMMA + 1);
+            }
+            return 2 * Math.pow(GAMMA, buckets.keys[buckets.size - 1]) / (GAMMA + 1);
+        }
+    }//end QuantileSketch
+
+    /**
+     * Misra-Gries heavy-hitter summary holding at most K counters. Each
+     * counter underestimates the true count of its key by at most
+     * error(), and every key whose count exceeds it is held. Summaries
+     * merge by adding their counters and reducing back to K.
+     */
+    static class HeavyHitters implements Serializable {
+        private static final long serialVersionUID = 1L;
+        static final int K = 64;
+
+        final IntCounts counters = new IntCounts();
+        long total;
+        // sum of the decrements, the bound on the error of every counter
+        long decremented;
+
+        void add(int key) {
+            counters.add(key, 1);
+            ++total;
+            reduce();
+        }
+
+        void merge(HeavyHitters other) {
+            counters.addAll(other.counters);
+            total += other.total;
+            decremented += other.decremented;
+            reduce();
+        }
+
+        private void reduce() {
+            if (counters.size <= K)
+                return;
+            long[] sorted = Arrays.copyOf(counters.counts, counters.size);
+            Arrays.sort(sorted);
+            long cut = sorted[counters.size - K - 1];
+            for (int i = 0; i < counters.size; i++)
+                counters.counts[i] -= cut;
+            decremented += cut;
+            counters.compact();
+        }
+
+        long error() {
+            return decremented;
+        }
+    }//end HeavyHitters
+
+    /**
+     * The sketches of one hotel on one day.
+     */
+    static class DaySketch implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final HyperLogLog customers = new HyperLogLog();
+        final QuantileSketch prices = new QuantileSketch();
+        final HeavyHitters companies = new HeavyHitters();
+
+        void merge(DaySketch other) {
+            customers.merge(other.customers);
+            prices.merge(other.prices);
+            companies.merge(other.companies);
+        }
+    }//end DaySketch
+
+    /**
+     * All the day sketches, by day then hotel, with the first inserting
+     * transaction not summarised yet.
+     */
+    static class SketchStore implements Serializable {
+        private static final long serialVersionUID = 2L;
+
+        long insertTx;
+        // a base segment holds the whole store, the segments before it are obsolete
+        boolean base;
+        final TreeMap<Integer, HashMap<Integer, DaySketch>> days = new TreeMap<Integer, HashMap<Integer, DaySketch>>();
+
+        // number of the last segment file and of the segments since the base one
+        transient int lastSegment;
+        transient int segments;
+
+        DaySketch day(int day, int hotel) {
+            HashMap<Integer, DaySketch> hotels = days.get(day);
+            if (hotels == null)
+                days.put(day, hotels = new HashMap<Integer, DaySketch>());
+            DaySketch sketch = hotels.get(hotel);
+            if (sketch == null)
+                hotels.put(hotel, sketch = new DaySketch());
+            return sketch;
+        }
+
+        /**
+         * Summarises the bookings and repairs inserted since the last call
+         * into a new segment, saved and then merged into the store. Nothing
+         * is merged when either stream fails.
+         *
+         * @return the number of rows summarised
+         */
+        synchronized long catchUp(DBProject esql) throws SQLException, IOException {
+            synchronized (SKETCH_LOCK) {
+                FileChannel lock = lockSketchDir();
+                try {
+                    List<File> files = segmentFiles();
+                    if (files.isEmpty() ? lastSegment != 0 : segmentNumber(files.get(files.size() - 1)) != lastSegment)
+                        reload(readSketches());
+
+                    long horizon = Long.parseLong(esql.executeQueryAndReturnResult(INSERT_HORIZON).get(0).get(0));
+                    String range = insertTx + " and inserttx<" + horizon;
+                    final SketchStore delta = new SketchStore();
+                    delta.insertTx = horizon;
+                    long rows = esql.streamQuery(BOOKING_SKETCH_INPUT + range, new RowHandler() {
+                        void row(ResultSet rs) throws SQLException {
+                            DaySketch sketch = delta.day(rs.getInt(3), rs.getInt(2));
+                            sketch.customers.add(rs.getInt(1));
+                            sketch.prices.add(rs.getLong(4));
+                        }
+                    });
+                    rows += esql.streamQuery(REPAIR_SKETCH_INPUT + range, new RowHandler() {
+                        void row(ResultSet rs) throws SQLException {
+                            delta.day(rs.getInt(3), rs.getInt(1)).companies.add(rs.getInt(2));
+                        }
+                    });
+                    if (rows == 0)
+                        return 0;
+
+                    delta.write(++lastSegment);
+                    merge(delta);
+                    if (++segments >= SKETCH_SEGMENTS)
+                        compact();
+                    return rows;
+                } finally {
+                    lock.close();
+                }//end try
+            }
+        }
+
+        /** Adds the sketches of another store, e.g. a segment, to this one. */
+        void merge(SketchStore other) {
+            for (Map.Entry<Integer, HashMap<Integer, DaySketch>> d : other.days.entrySet())
+                for (Map.Entry<Integer, DaySketch> h : d.getValue().entrySet())
+                    day(d.getKey(), h.getKey()).merge(h.getValue());
+            insertTx = Math.max(insertTx, other.insertTx);
+        }
+
+        /** Replaces the content of this store with the one of a store read again from disk. */
+        synchronized void reload(SketchStore other) {
+            days.clear();
+            insertTx = 0;
+            merge(other);
+            lastSegment = other.lastSegment;
+            segments = other.segments;
+        }
+
+        /**
+         * Merges the day sketches accepted by the filter into one per hotel.
+         */
+        synchronized TreeMap<Integer, DaySketch> merge(SnapshotFilter filter) {
+            TreeMap<Integer, DaySketch> result = new TreeMap<Integer, DaySketch>();
+            for (Map.Entry<Integer, HashMap<Integer, DaySketch>> d : days.entrySet()) {
+                for (Map.Entry<Integer, DaySketch> h : d.getValue().entrySet()) {
+                    if (!filter.accept(h.getKey(), d.getKey()))
+                        continue;
+                    DaySketch merged = result.get(h.getKey());
+                    if (merged == null)
+                        result.put(h.getKey(), merged = new DaySketch());
+                    merged.merge(h.getValue());
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Writes the whole store as a base segment and removes the segments
+         * it replaces. A crash in between is harmless: loading starts from
+         * the last base segment.
+         */
+        void compact() throws IOException {
+            base = true;
+            try {
+                write(++lastSegment);
+            } finally {
+                base = false;
+            }
+            for (File file : segmentFiles())
+                if (segmentNumber(file) < lastSegment)
+                    file.delete();
+            segments = 0;
+        }
+
+        /** Writes this store as the given segment, atomically through a temporary file. */
+        void write(int segment) throws IOException {
+            if (!SKETCH_DIR.isDirectory() && !SKETCH_DIR.mkdirs())
+                throw new IOException("Unable to create " + SKETCH_DIR);
+            File file = new File(SKETCH_DIR, String.format("%08d.sketch", segment));
+            File tmp = new File(file.getPath() + ".tmp");
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeObject(this);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("Unable to write " + file);
+        }
+    }//end SketchStore
+
+    /*
+     * The segment files of the sketch store in the order they were written
+     */
+    static List<File> segmentFiles() {
+        List<File> files = new ArrayList<File>();
+        File[] list = SKETCH_DIR.listFiles();
+        if (list != null)
+            for (File file : list)
+                if (file.getName().matches("[0-9]{8}\\.sketch"))
+                    files.add(file);
+        Collections.sort(files);
+        return files;
+    }//end segmentFiles
+
+    static int segmentNumber(File segment) {
+        return Integer.parseInt(segment.getName().substring(0, 8));
+    }//end segmentNumber
+
+    /*
+     * Takes the lock other processes sharing SKETCH_DIR wait on before they
+     * write or delete segments, released by closing the returned channel.
+     * Callers hold SKETCH_LOCK.
+     */
+    static FileChannel lockSketchDir() throws IOException {
+        if (!SKETCH_DIR.isDirectory() && !SKETCH_DIR.mkdirs())
+            throw new IOException("Unable to create " + SKETCH_DIR);
+        FileChannel lock = new RandomAccessFile(new File(SKETCH_DIR, "lock"), "rw").getChannel();
+        try {
+            lock.lock();
+        } catch (IOException e) {
+            lock.close();
+            throw e;
+        }
+        return lock;
+    }//end lockSketchDir
+
+    /*
+     * Returns the sketch store, loading it on first use, after catching it
+     * up with the rows added since
+     */
+    static SketchStore sketchStore(DBProject esql, boolean rebuild) throws SQLException, IOException {
+        SketchStore store = loadSketches(rebuild);
+        long start = System.currentTimeMillis();
+        long rows = store.catchUp(esql);
+        if (rows > 0)
+            System.out.println("Summarised " + rows + " new row(s) in " + (System.currentTimeMillis() - start) + " ms");
+        return store;
+    }//end sketchStore
+
+    /*
+     * Returns the sketch store as last saved, merged from the segments in
+     * SKETCH_DIR on first use, or an empty one after a rebuild
+     */
+    static synchronized SketchStore loadSketches(boolean rebuild) throws IOException {
+        synchronized (SKETCH_LOCK) {
+            FileChannel lock = lockSketchDir();
+            try {
+                if (rebuild) {
+                    // an empty base segment, numbered after the others so that every process sees it
+                    SketchStore empty = new SketchStore();
+                    List<File> files = segmentFiles();
+                    empty.lastSegment = files.isEmpty() ? 0 : segmentNumber(files.get(files.size() - 1));
+                    empty.compact();
+                    if (sketches != null)
+                        sketches.reload(empty);
+                }
+                if (sketches == null)
+                    sketches = readSketches();
+            } finally {
+                lock.close();
+            }//end try
+        }
+        return sketches;
+    }//end loadSketches
+
+    /*
+     * Merges the segments in SKETCH_DIR from the last base segment on.
+     * Callers hold the lock of SKETCH_DIR.
+     */
+    static SketchStore readSketches() throws IOException {
+        List<File> files = segmentFiles();
+        List<SketchStore> loaded = new ArrayList<SketchStore>();
+        for (File file : files) {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                SketchStore segment = (SketchStore) in.readObject();
+                if (segment.base)
+                    loaded.clear();
+                loaded.add(segment);
+            } catch (InvalidClassException e) {
+                throw new IOException("Sketch segment " + file + " is from an older version, rebuild the sketches");
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unreadable sketch segment " + file + ": " + e.getMessage());
+            } finally {
+                in.close();
+            }
+        }
+        SketchStore store = new SketchStore();
+        for (SketchStore segment : loaded)
+            store.merge(segment);
+        store.lastSegment = files.isEmpty() ? 0 : segmentNumber(files.get(files.size() - 1));
+        store.segments = loaded.size();
+        return store;
+    }//end readSketches
+
+    public static void approximateAnalytics(DBProject esql) {
+        // Answer distinct customer, price quantile and top company questions from the sketches
+        boolean keepon = true;
+        while (keepon) {
+            System.out.println("APPROXIMATE ANALYTICS");
+            System.out.println("---------------------");
+            System.out.println("1. Distinct customers per hotel");
+            System.out.println("2. Price quantiles per hotel");
+            System.out.println("3. Top k maintenance companies");
+            System.out.println("4. Rebuild sketches from scratch");
+            System.out.println("5. < BACK");
+            try {
+                switch (readChoice()) {
+                    case 1:
+                        approximateDistinctCustomers(esql);
+                        break;
+                    case 2:
+                        approximatePriceQuantiles(esql);
+                        break;
+                    case 3:
+                        approximateTopKMaintenanceCompany(esql);
+                        break;
+                    case 4:
+                        sketchStore(esql, true);
+                        System.out.println("Sketches rebuilt\n");
+                        break;
+                    case 5:
+                        keepon = false;
+                        break;
+                    default:
+                        System.out.println("Unrecognized choice!");
+                        break;
+                }//end switch
+            } catch (Exception e) {
+                System.err.println(e.getMessage());
+            }
+        }//end while
+    }//end approximateAnalytics
+
+    public static void approximateDistinctCustomers(DBProject esql) throws IOException, SQLException {
+        SnapshotFilter filter = readSnapshotFilter(esql, true);
+        SketchStore store = sketchStore(esql, false);
+        long start = System.currentTimeMillis();
+        TreeMap<Integer, DaySketch> hotels = store.merge(filter);
+        HyperLogLog all = new HyperLogLog();
+        System.out.println("hotelid\tcustomers\t");
+        for (Map.Entry<Integer, DaySketch> e : hotels.entrySet()) {
+            System.out.println(e.getKey() + "\t" + e.getValue().customers.estimate() + "\t");
+            all.merge(e.getValue().customers);
+        }
+        System.out.println("all\t" + all.estimate() + "\t");
+        System.out.println("total row(s): " + hotels.size() + " (" + (System.currentTimeMillis() - start)
+                + " ms), counts within +/-" + String.format("%.1f", 2 * 100 * HyperLogLog.STANDARD_ERROR)
+                + "% at 95% confidence\n");
+    }//end approximateDistinctCustomers
+
+    public static void approximatePriceQuantiles(DBProject esql) throws IOException, SQLException {
+        SnapshotFilter filter = readSnapshotFilter(esql, true);
+        SketchStore store = sketchStore(esql, false);
+        long start = System.currentTimeMillis();
+        TreeMap<Integer, DaySketch> hotels = store.merge(filter);
+        QuantileSketch all = new QuantileSketch();
+        System.out.println("hotelid\tbookings\tp50\tp90\tp99\t");
+        for (Map.Entry<Integer, DaySketch> e : hotels.entrySet()) {
+            QuantileSketch prices = e.getValue().prices;
+            if (prices.count > 0)
+                System.out.println(e.getKey() + "\t" + quantileRow(prices));
+            all.merge(prices);
+        }
+        if (all.count > 0)
+            System.out.println("all\t" + quantileRow(all));
+        System.out.println("total row(s): " + hotels.size() + " (" + (System.currentTimeMillis() - start)
+                + " ms), prices within +/-" + Math.round(100 * QuantileSketch.ALPHA) + "%\n");
+    }//end approximatePriceQuantiles
+
+    static String quantileRow(QuantileSketch prices) {
+        return prices.count + "\t" + String.format("%.2f", prices.quantile(0.5) / 100) + "\t"
+                + String.format("%.2f", prices.quantile(0.9) / 100) + "\t"
+                + String.format("%.2f", prices.quantile(0.99) / 100) + "\t";
+    }//end quantileRow
+
+    public static void approximateTopKMaintenanceCompany(DBProject esql) throws IOException, SQLException {
+        SnapshotFilter filter = readSnapshotFilter(esql, true);
+        int k = Integer.parseInt(readRequired("top k").trim());
+        if (k > HeavyHitters.K)
+            System.out.println("Only the top " + HeavyHitters.K + " companies are tracked");
+        SketchStore store = sketchStore(esql, false);
+        long start = System.currentTimeMillis();
+        HeavyHitters all = new HeavyHitters();
+        for (DaySketch sketch : store.merge(filter).values())
+            all.merge(sketch.companies);
+
+        List<long[]> top = new ArrayList<long[]>();
+        for (int i = 0; i < all.counters.size; i++)
+            top.add(new long[]{all.counters.counts[i], all.counters.keys[i]});
+        Collections.sort(top, new java.util.Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[0] != b[0] ? (a[0] > b[0] ? -1 : 1) : (a[1] < b[1] ? -1 : a[1] > b[1] ? 1 : 0);
+            }
+        });
+        top = top.subList(0, Math.min(k, top.size()));
+
+        Map<Long, String> names = new HashMap<Long, String>();
+        if (!top.isEmpty()) {
+            StringBuilder ids = new StringBuilder();
+            for (long[] t : top)
+                ids.append(ids.length() > 0 ? "," : "").append(t[1]);
+            for (List<String> row : esql.executeQueryAndReturnResult(
+                    "select cmpid,name from maintenancecompany where cmpid in(" + ids + ");"))
+                names.put(Long.parseLong(row.get(0)), row.get(1).trim());
+        }
+        System.out.println("cmpid\tname\trepairs\tat most\t");
+        for (long[] t : top)
+            System.out.println(t[1] + "\t" + names.get(t[1]) + "\t" + t[0] + "\t" + (t[0] + all.error()) + "\t");
+        System.out.println("total row(s): " + top.size() + " (" + (System.currentTimeMillis() - start)
+                + " ms), counts low by at most " + all.error() + " of " + all.total + " repair(s)\n");
+    }//end approximateTopKMaintenanceCompany
+
+    /*
+     * ----------------------------------------------------------------------
+     * Startup warm-up
+     * ----------------------------------------------------------------------
+     * While the menu waits for its first choice a background thread, on a
+     * session of its own, pays the costs the first operations would
+     * otherwise pay: it loads the hot tables and indexes into the buffer
+     * cache when the pg_prewarm extension is installed, runs every point
+     * lookup once with sample arguments through the code path and admission
+     * class the menu uses, which loads and compiles the classes and touches
+     * the index pages the plans use, plans the updates and reports with
+     * EXPLAIN without running them, and catches up the sketch store. Plans
+     * and catalog caches belong to a server backend, so the menu's own
+     * session only profits from the shared buffers and the warmed JVM.
+     *
+     * The startup metrics report the time to the menu, the time to the
+     * first query (the time to the menu plus the latency of the first
+     * operation, so the user's think time at the menu is not counted), the
+     * time until the warm-up finished and of each of its steps, and the
+     * latency of the first call of every operation; with -Dstartup.log they are appended
+     * to a file on exit, one line per run, to track regressions.
+     */
+
+    // run the warm-up, disable with -Dwarmup=false
+    static final boolean WARMUP = Boolean.parseBoolean(System.getProperty("warmup", "true"));
+
+    // file the startup metrics are appended to on exit, -Dstartup.log, none by default
+    static final String STARTUP_LOG = System.getProperty("startup.log");
+
+    // relations loaded into the buffer cache, tables first
+    static final String[] HOT_TABLES = {"booking", "repair", "room", "customer", "maintenancecompany"};
+    static final String[] HOT_INDEXES = {"booking_price_index", "booking_customer_index", "repair_company_index",
+            "room_index", "customer_index", "customer_name_index", "maintenancecompany_index"};
+
+    // when the class was loaded, i.e. the program started
+    static final long STARTED = System.nanoTime();
+
+    // when the menu session was connected, 0 until then
+    static volatile long connectedNanos;
+
+    // latency of the first successful call of every operation, 0 until called
+    static final AtomicLongArray firstCallNanos = new AtomicLongArray(OPERATION_NAMES.length);
+
+    // latency of the first successful operation of any kind, 0 until then
+    static final AtomicLong firstQueryNanos = new AtomicLong();
+
+    static WarmUp warmUp;
+
+    /**
+     * The warm-up task, it keeps the time every step took for the metrics.
+     * A failure ends the warm-up early and is kept as well: the menu does
+     * not depend on it.
+     */
+    static class WarmUp implements Runnable {
+        final DBProject esql;
+        volatile long prewarmMillis = -1;
+        volatile boolean prewarmExtension;
+        final AtomicLongArray operationMillis = new AtomicLongArray(OPERATION_NAMES.length);
+        volatile long cacheMillis = -1;
+        volatile long totalMillis = -1;
+        volatile long doneNanos;
+        volatile String error;
+
+        WarmUp(DBProject esql) {
+            this.esql = esql;
+            for (int i = 0; i < operationMillis.length(); i++)
+                operationMillis.set(i, -1);
+        }//end WarmUp
+
+        void start() {
+            Thread thread = new Thread(this, "warm-up");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }//end start
+
+        public void run() {
+            long start = System.currentTimeMillis();
+            DBProject session = null;
+            try {
+                session = openBackgroundSession(esql);
+                prewarm(session);
+                operations(session);
+
+                long step = System.currentTimeMillis();
+                if (SKETCH_DIR.isDirectory())
+                    loadSketches(false).catchUp(session);
+                cacheMillis = System.currentTimeMillis() - step;
+            } catch (Exception e) {
+                error = e.getMessage();
+            } finally {
+                if (session != null)
+                    session.cleanup();
+                totalMillis = System.currentTimeMillis() - start;
+                doneNanos = System.nanoTime();
+            }//end try
+        }//end run
+
+        void prewarm(DBProject session) throws SQLException {
+            long start = System.currentTimeMillis();
+            prewarmExtension = !session.executeQueryAndReturnResult(
+                    "select 1 from pg_proc where proname='pg_prewarm';").isEmpty();
+            // without the extension nothing is read in bulk: a sequential scan of a large table goes through a
+            // ring buffer and leaves little in shared buffers, the operations below read the index pages they use
+            if (prewarmExtension) {
+                for (String table : HOT_TABLES)
+                    session.executeQueryAndReturnResult("select pg_prewarm('" + table + "');");
+                for (String index : HOT_INDEXES)
+                    session.executeQueryAndReturnResult("select pg_prewarm('" + index + "');");
+            }
+            prewarmMillis = System.currentTimeMillis() - start;
+        }//end prewarm
+
+        void operations(DBProject session) throws SQLException {
+            Map<String, String> samples = sampleArguments(session);
+            PrintStream discard = new PrintStream(new OutputStream() {
+                public void write(int b) {
+                }
+
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+            for (int op = 1; op <= OPERATION_NAMES.length; op++) {
+                String[] params = OPERATION_PARAMS[op - 1];
+                String[] args = new String[params.length];
+                for (int i = 0; i < params.length; i++) {
+                    String value = samples.get(params[i]);
+                    args[i] = value != null ? value : params[i].endsWith("?") ? "" : "0";
+                }
+                long start = System.currentTimeMillis();
+                // only the point lookups run, under their admission class, the reports would scan whole tables
+                if (admissionClass(op) == POINT_LOOKUPS)
+                    runAdmitted(null, session, op, operationQuery(op, args), discard);
+                else
+                    session.executeQueryAndReturnResult("explain " + operationQuery(op, args));
+                operationMillis.set(op - 1, System.currentTimeMillis() - start);
+            }//end for
+        }//end operations
+
+        /*
+         * Arguments taken from existing rows so the operations read real
+         * index pages, by parameter name
+         */
+        static Map<String, String> sampleArguments(DBProject session) throws SQLException {
+            Map<String, String> samples = new HashMap<String, String>();
+            List<List<String>> rows = session.executeQueryAndReturnResult(
+                    "select to_char(current_date-7,'YYYY-MM-DD'),to_char(current_date,'YYYY-MM-DD'),"
+                            + "(select hotelid from room limit 1),(select roomno from room limit 1),"
+                            + "(select fname from customer limit 1),(select lname from customer limit 1),"
+                            + "(select name from maintenancecompany limit 1);");
+            List<String> row = rows.get(0);
+            for (String date : new String[]{"date", "dateFrom", "bookingDate", "repairDate", "requestDate"})
+                samples.put(date, row.get(0));
+            samples.put("dateTo", row.get(1));
+            String[] names = {"hotelID", "roomNo", "fName", "lName", "companyName"};
+            for (int i = 0; i < names.length; i++) {
+                if (row.get(i + 2) != null)
+                    samples.put(names[i], row.get(i + 2).replace("'", "''"));
+            }
+            samples.put("roomType", "Suite");
+            samples.put("isCertified", "false");
+            samples.put("k", "10");
+            return samples;
+        }//end sampleArguments
+    }//end WarmUp
+
+    /*
+     * Records the latency of a successful operation if it was its first call
+     */
+    static void recordFirstCall(int op, long startNanos) {
+        long latency = Math.max(1, System.nanoTime() - startNanos);
+        firstCallNanos.compareAndSet(op - 1, 0, latency);
+        firstQueryNanos.compareAndSet(0, latency);
+    }//end recordFirstCall
+
+    static int printStartupMetrics(PrintStream out) {
+        int lines = 0;
+        out.println("startup_connect_ms\t" + (connectedNanos == 0 ? -1 : (connectedNanos - STARTED) / 1000000));
+        out.println("startup_first_query_ms\t" + (connectedNanos == 0 || firstQueryNanos.get() == 0 ? -1
+                : (connectedNanos - STARTED + firstQueryNanos.get()) / 1000000));
+        lines += 2;
+        if (warmUp != null) {
+            out.println("startup_warm_ms\t" + (warmUp.doneNanos == 0 ? -1 : (warmUp.doneNanos - STARTED) / 1000000));
+            out.println("warmup_total_ms\t" + warmUp.totalMillis);
+            out.println("warmup_prewarm_ms\t" + warmUp.prewarmMillis);
+            out.println("warmup_prewarm_extension\t" + (warmUp.prewarmExtension ? 1 : 0));
+            out.println("warmup_caches_ms\t" + warmUp.cacheMillis);
+            lines += 5;
+            if (warmUp.error != null) {
+                out.println("warmup_error\t" + warmUp.error.replace('\n', ' '));
+                ++lines;
+            }
+        }
+        for (int op = 1; op <= OPERATION_NAMES.length; op++) {
+            if (warmUp != null && warmUp.operationMillis.get(op - 1) >= 0) {
+                out.println("warmup_" + OPERATION_NAMES[op - 1] + "_ms\t" + warmUp.operationMillis.get(op - 1));
+                ++lines;
+            }
+            if (firstCallNanos.get(op - 1) > 0) {
+                out.println("first_call_" + OPERATION_NAMES[op - 1] + "_ms\t"
+                        + String.format("%.2f", firstCallNanos.get(op - 1) / 1e6));
+                ++lines;
+            }
+        }//end for
+        return lines;
+    }//end printStartupMetrics
+
+    /*
+     * Appends the startup metrics of this run to STARTUP_LOG as one line of
+     * tab separated name=value pairs
+     */
+    static void logStartupMetrics() {
+        if (STARTUP_LOG == null)
+            return;
+        ByteArrayOutputStream metrics = new ByteArrayOutputStream();
+        printStartupMetrics(new PrintStream(metrics, true));
+        StringBuilder line = new StringBuilder("run=" + new java.util.Date());
+        for (String metric : metrics.toString().split("\n"))
+            line.append('\t').append(metric.replace('\t', '='));
+        try {
+            Writer out = new BufferedWriter(new FileWriter(STARTUP_LOG, true));
+            try {
+                out.write(line + "\n");
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to write " + STARTUP_LOG + ": " + e.getMessage());
+        }//end try
+    }//end logStartupMetrics
+
+    /*
+     * ----------------------------------------------------------------------
+     * Customer resolution
+     * ----------------------------------------------------------------------
+     * Customers are found by their normalized name, lower case and without
+     * the blank padding of the CHAR(30) columns, through
+     * customer_name_index on (lower(lname::text), lower(fname::text)).
+     * The text_pattern_ops operator class lets the same index serve the
+     * prefix searches of the front desk. The operations taking a customer
+     * name resolve it first and, when several customers share the name,
+     * ask which customerID is meant.
+     */
+
+    // candidates shown by a lookup
+    static final int CUSTOMER_CANDIDATES = 20;
+
+    // order of customer_name_index, the pattern operators compare like its operator class
+    static final String CUSTOMER_ORDER = "lower(c.lname::text) using ~<~,lower(c.fname::text) using ~<~";
+
+    /*
+     * Condition matching the customers of the given alias with the given
+     * name, in the form customer_name_index serves
+     */
+    static String customerMatch(String alias, String fName, String lName) {
+        return "lower(" + alias + ".lname::text)=lower('" + lName.trim().replace("'", "''") + "') and lower("
+                + alias + ".fname::text)=lower('" + fName.trim().replace("'", "''") + "')";
+    }//end customerMatch
+
+    /*
+     * Condition matching the customers whose names start with the given
+     * prefixes, an empty fName prefix matches any first name
+     */
+    static String customerPrefix(String alias, String fName, String lName) {
+        String condition = "lower(" + alias + ".lname::text) like lower('" + likePrefix(lName) + "')";
+        if (!fName.trim().isEmpty())
+            condition += " and lower(" + alias + ".fname::text) like lower('" + likePrefix(fName) + "')";
+        return condition;
+    }//end customerPrefix
+
+    /*
+     * LIKE pattern of a prefix, quoted for a string literal
+     */
+    static String likePrefix(String prefix) {
+        return prefix.trim().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_").replace("'", "''") + "%";
+    }//end likePrefix
+
+    /*
+     * The first CUSTOMER_CANDIDATES customers matching the condition, in
+     * index order
+     */
+    static List<List<String>> findCustomers(DBProject esql, String condition) throws SQLException {
+        return esql.executeQueryAndReturnResult("select c.customerid,c.fname,c.lname,c.dob,c.address from customer c where "
+                + condition + " order by " + CUSTOMER_ORDER + ",c.customerid limit "
+                + CUSTOMER_CANDIDATES + ";");
+    }//end findCustomers
+
+    static void printCustomers(List<List<String>> customers) {
+        System.out.println("customerid\tfname\tlname\tdob\taddress\t");
+        for (List<String> row : customers) {
+            for (String value : row)
+                System.out.print((value == null ? "" : value.trim()) + "\t");
+            System.out.println();
+        }
+        System.out.println((customers.size() < CUSTOMER_CANDIDATES ? "total" : "first") + " row(s): "
+                + customers.size() + "\n");
+    }//end printCustomers
+
+    /**
+     * Resolves a customer name to a customerID. When several customers
+     * share the name they are listed and the user picks one.
+     *
+     * @return the customerID, null when no customer has the name or the
+     * choice is not one of them
+     */
+    static String chooseCustomer(DBProject esql, String fName, String lName) throws IOException, SQLException {
+        String match = customerMatch("c", fName, lName);
+        List<List<String>> candidates = findCustomers(esql, match);
+        if (candidates.isEmpty()) {
+            System.out.println("No customer named " + fName.trim() + " " + lName.trim() + "\n");
+            return null;
+        }
+        if (candidates.size() == 1)
+            return candidates.get(0).get(0).trim();
+
+        System.out.println("Several customers are named " + fName.trim() + " " + lName.trim() + ":");
+        printCustomers(candidates);
+        long customerID = Long.parseLong(readRequired("customerID").trim());
+        if (esql.executeQueryAndReturnResult("select 1 from customer c where c.customerid=" + customerID + " and "
+                + match + ";").isEmpty()) {
+            System.out.println("Customer " + customerID + " is not named " + fName.trim() + " " + lName.trim() + "\n");
+            return null;
+        }
+        return String.valueOf(customerID);
+    }//end chooseCustomer
+
+    public static void customerLookup(DBProject esql) {
+        // Find customers by name or name prefix for the front desk
+        try {
+            System.out.println("CUSTOMER LOOKUP");
+            System.out.println("---------------");
+            System.out.println("1. Find customers by name");
+            System.out.println("2. Find customers by name prefix");
+            System.out.println("3. Benchmark the lookup");
+            System.out.println("4. < BACK");
+            switch (readChoice()) {
+                case 1:
+                    printCustomers(findCustomers(esql, customerMatch("c", readRequired("fName"), readRequired("lName"))));
+                    break;
+                case 2:
+                    String lName = readRequired("lName prefix");
+                    printCustomers(findCustomers(esql, customerPrefix("c", readOptional("fName prefix(empty for any)"),
+                            lName)));
+                    break;
+                case 3:
+                    benchmarkCustomerLookup(esql);
+                    break;
+                case 4:
+                    break;
+                default:
+                    System.out.println("Unrecognized choice!");
+                    break;
+            }//end switch
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+    }//end customerLookup
+
+    /*
+     * Times the indexed lookups against the unindexed subselect bookRoom
+     * used, on the Customer table or on a temporary table of synthetic
+     * customers
+     */
+    static void benchmarkCustomerLookup(DBProject esql) throws IOException, SQLException {
+        String input = readOptional("synthetic rows(empty to use the Customer table)").trim();
+        String table = "customer";
+        if (!input.isEmpty()) {
+            // about 50 customers per last name and 1000 first names, so a full name is shared now and then
+            long rows = Long.parseLong(input);
+            long start = System.currentTimeMillis();
+            esql.executeUpdate("drop table if exists customer_bench;");
+            esql.executeUpdate("create temp table customer_bench as select g customerid,"
+                    + "('F'||(random()*999)::int)::char(30) fname,('L'||(random()*" + Math.max(1, rows / 50)
+                    + ")::int)::char(30) lname,null::date dob,null::text address from generate_series(1," + rows + ") g;");
+            esql.executeUpdate("create index customer_bench_name_index on customer_bench using btree "
+                    + "(lower(lname::text) text_pattern_ops,lower(fname::text) text_pattern_ops);");
+            esql.executeUpdate("analyze customer_bench;");
+            System.out.println(rows + " synthetic customer(s) loaded and indexed in "
+                    + (System.currentTimeMillis() - start) / 1000.0 + " s");
+            table = "customer_bench";
+        }
+        String fName = readRequired("fName");
+        String lName = readRequired("lName");
+        int runs = Integer.parseInt(readRequired("runs").trim());
+
+        String exact = "select customerid from " + table + " c where " + customerMatch("c", fName, lName) + ";";
+        String prefix = "select customerid from " + table + " c where "
+                + customerPrefix("c", "", lName.trim().substring(0, Math.min(3, lName.trim().length())))
+                + " order by " + CUSTOMER_ORDER + " limit " + CUSTOMER_CANDIDATES + ";";
+        String subselect = "select customerid from " + table + " where fname='" + fName.replace("'", "''")
+                + "' and lname='" + lName.replace("'", "''") + "';";
+        System.out.println("customers named " + fName.trim() + " " + lName.trim() + ": "
+                + esql.executeQueryAndReturnResult(exact).size());
+        printTimings("normalized name (index)", timeQuery(esql, exact, runs));
+        printTimings("3 letter prefix (index)", timeQuery(esql, prefix, runs));
+        printTimings("fname/lname subselect (scan)", timeQuery(esql, subselect, runs));
+        System.out.println();
+    }//end benchmarkCustomerLookup
 
 }//end DBProject
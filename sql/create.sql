@@ -10,6 +10,12 @@ DROP TABLE IF EXISTS Repair CASCADE;
 DROP TABLE IF EXISTS Request CASCADE;
 DROP TABLE IF EXISTS Assigned CASCADE;
 
+DROP TABLE IF EXISTS Booking_archive CASCADE;
+DROP TABLE IF EXISTS Repair_archive CASCADE;
+DROP TABLE IF EXISTS Request_archive CASCADE;
+DROP TABLE IF EXISTS ArchiveHorizon CASCADE;
+DROP TABLE IF EXISTS JournalApplied CASCADE;
+
 -- The below sql statements drops of the enum types if they exits
 DROP TYPE IF EXISTS StaffRole CASCADE;
 DROP TYPE IF EXISTS GenderType CASCADE;
@@ -58,6 +64,7 @@ CREATE TABLE Booking( bID Numeric NOT NULL,
 					  bookingDate Date NOT NULL,
 					  noOfPeople Numeric,
 					  price Numeric(6,2) NOT NULL,
+					  insertTx BIGINT NOT NULL DEFAULT txid_current(), -- inserting transaction, the change feed of the snapshot and the sketches
 					  PRIMARY KEY(bID));
 					  
 CREATE TABLE Repair( rID Numeric NOT NULL,
@@ -67,6 +74,7 @@ CREATE TABLE Repair( rID Numeric NOT NULL,
 					 repairDate Date NOT NULL,
 					 description TEXT,
 					 repairType CHAR(10),
+					 insertTx BIGINT NOT NULL DEFAULT txid_current(), -- inserting transaction, the change feed of the snapshot and the sketches
 					 PRIMARY KEY(rID));
 					 
 CREATE TABLE Request( reqID Numeric NOT NULL,
@@ -82,6 +90,27 @@ CREATE TABLE Assigned( asgID Numeric NOT NULL,
 					   roomNo Numeric NOT NULL DEFAULT 0,
 					   PRIMARY KEY(asgID));
 
+-- The below tables hold the history moved out of Booking, Repair and Request by the archival job.
+-- They have the same columns as the live tables but no foreign keys, the rows they referenced may be archived too.
+CREATE TABLE Booking_archive( LIKE Booking INCLUDING DEFAULTS,
+							  PRIMARY KEY(bID));
+
+CREATE TABLE Repair_archive( LIKE Repair INCLUDING DEFAULTS,
+							 PRIMARY KEY(rID));
+
+CREATE TABLE Request_archive( LIKE Request INCLUDING DEFAULTS,
+							  PRIMARY KEY(reqID));
+
+-- Rows dated before the horizon of a table may be in its archive, '-infinity' when nothing was archived
+CREATE TABLE ArchiveHorizon( tableName TEXT NOT NULL,
+							 horizon Date NOT NULL,
+							 PRIMARY KEY(tableName));
+
+-- Last sequence number of each local write-ahead journal applied to the database
+CREATE TABLE JournalApplied( journal TEXT NOT NULL,
+							 seq Numeric NOT NULL DEFAULT 0,
+							 PRIMARY KEY(journal));
+
 -- The below sql statments creates necessary Foreign Key Constraints on the above created tables
 ALTER TABLE Hotel
 ADD CONSTRAINT managerConstraint
@@ -159,6 +188,34 @@ create index booking_index on booking using btree (bID);
 create index repair_index on repair using btree (rID);
 create index request_index on request using btree (reqID);
 create index assigned_index on assigned using btree (asgID);
+-- keyset pagination of the paged listings
+create index repair_company_index on repair using btree (mCompany,rID);
+create index booking_price_index on booking using btree (price,bID);
+create index booking_customer_index on booking using btree (customer,price,bID);
+-- customer lookup by normalized name, exact and prefix
+create index customer_name_index on customer using btree (lower(lname::text) text_pattern_ops,lower(fname::text) text_pattern_ops);
+-- archival batches walk the live tables in (date, key) order
+create index booking_date_index on booking using btree (bookingDate,bID);
+create index repair_date_index on repair using btree (repairDate,rID);
+create index request_date_index on request using btree (requestDate,reqID);
+create index request_repair_index on request using btree (repairID);
+-- archive lookups of the reports
+create index booking_archive_customer_index on booking_archive using btree (customer,bookingDate);
+create index repair_archive_room_index on repair_archive using btree (hotelID,roomNo);
+-- keyset pagination of the paged listings, archive branch of the union
+create index repair_archive_company_index on repair_archive using btree (mCompany,rID);
+create index booking_archive_price_index on booking_archive using btree (price,bID);
+create index booking_archive_customer_price_index on booking_archive using btree (customer,price,bID);
+-- snapshot refreshes and sketch catch-ups read the rows inserted by the transactions finished since the last one
+create index booking_insert_index on booking using btree (insertTx);
+create index repair_insert_index on repair using btree (insertTx);
+create index booking_archive_insert_index on booking_archive using btree (insertTx);
+create index repair_archive_insert_index on repair_archive using btree (insertTx);
+-- full-text search of the descriptions, the expression must match the one of the search queries
+create index repair_description_index on repair using gin (to_tsvector('english',coalesce(description,'')));
+create index request_description_index on request using gin (to_tsvector('english',coalesce(description,'')));
+create index repair_archive_description_index on repair_archive using gin (to_tsvector('english',coalesce(description,'')));
+create index request_archive_description_index on request_archive using gin (to_tsvector('english',coalesce(description,'')));
 
 -- data copy				 
 COPY Hotel(	hotelID,			 
@@ -239,5 +296,6 @@ COPY Assigned(asgID,
 			  hotelID,
 			  roomNo)
 FROM 'assigned.csv'
-WITH DELIMITER ',';		
-	
\ No newline at end of file
+WITH DELIMITER ',';
+
+INSERT INTO ArchiveHorizon VALUES('booking','-infinity'), ('repair','-infinity'), ('request','-infinity');